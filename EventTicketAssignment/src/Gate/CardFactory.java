@@ -0,0 +1,71 @@
+package Gate;
+
+import java.security.GeneralSecurityException;
+import javax.smartcardio.CardException;
+import Ticket.Ticket;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Makes memory images of issued ticket cards for the emulated readers. The
+ * cards are formatted and issued with the real Ticket code on a private
+ * emulated reader, so they carry valid MACs.
+ */
+public class CardFactory {
+
+	public enum Kind {
+		VALID, EXPIRED, EXHAUSTED
+	}
+
+	private final EmulatedTerminal terminal = new EmulatedTerminal("Card factory");
+	private final UltralightCommands ul;
+	private final Ticket ticket;
+
+	public CardFactory() throws CardException, GeneralSecurityException,
+			java.io.IOException {
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		terminal.insertCard(EmulatedTerminal.blankCard(0));
+		reader.initCard();
+		ul = new UltralightCommands(reader);
+		ul.safe = false; // Emulated cards can always be thrown away.
+		ticket = new Ticket(ul, null);
+	}
+
+	/**
+	 * Issue a new card.
+	 * 
+	 * @param uid
+	 *            Serial number of the card.
+	 * @param kind
+	 *            Valid for 30 days and 10 uses, expired a day ago, or with
+	 *            both of its 2 uses used.
+	 * @param currentTime
+	 *            Time in minutes since January 1, 1970.
+	 * @return The 64-byte memory image of the card.
+	 */
+	public synchronized byte[] issue(long uid, Kind kind, int currentTime)
+			throws CardException, GeneralSecurityException {
+		byte[] image = EmulatedTerminal.blankCard(uid);
+		terminal.insertCard(image);
+		boolean status = ticket.format();
+		switch (kind) {
+		case VALID:
+			status &= ticket.issue(currentTime + 30 * 24 * 60, 10);
+			break;
+		case EXPIRED:
+			status &= ticket.issue(currentTime - 24 * 60, 10);
+			break;
+		case EXHAUSTED:
+			status &= ticket.issue(currentTime + 30 * 24 * 60, 2);
+			status &= ticket.use(ul, currentTime).isValid();
+			status &= ticket.use(ul, currentTime).isValid();
+			break;
+		}
+		if (!status)
+			throw new CardException("Bug: issuing an emulated card failed.");
+		return image;
+	}
+
+}
@@ -0,0 +1,262 @@
+package Gate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import Ticket.Ticket;
+import Ticket.ValidationResult;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Load generator for sizing gate hardware. It simulates a number of gates,
+ * each with its own emulated reader, and drives Ticket.use() through the
+ * normal CardReader and UltralightCommands code with a configurable APDU
+ * latency. Riders arrive either as a Poisson process or in bursts, like
+ * people getting off a train, and carry a mix of valid, expired and
+ * exhausted tickets. Each gate has its own Ticket, like a real gate, so
+ * the MAC computations of different gates do not wait for each other.
+ *
+ * The arrivals are scheduled in advance (open loop), so a slow gate builds
+ * up a queue instead of slowing down the arrivals. For every tap the
+ * generator records the time spent waiting in the queue, connecting to the
+ * card, validating it, and the total.
+ *
+ * Usage: GateLoadGenerator [key=value ...], see main() for the keys.
+ */
+public class GateLoadGenerator {
+
+	private final int gates;
+	private final double ratePerGate; // Riders per second per gate.
+	private final boolean bursty;
+	private final double burstSize; // Mean riders per burst.
+	private final long burstGapNanos; // Between riders in one burst.
+	private final long durationNanos;
+	private final long apduLatencyNanos;
+	private final long commandLatencyNanos; // In a transparent exchange.
+	private final boolean exchange;
+	private final boolean safe;
+	private final int[] mix; // Percentages of valid, expired and exhausted.
+	private final int cardsPerGate;
+	private final long seed;
+
+	public GateLoadGenerator(Options options) {
+		gates = options.getInt("gates");
+		ratePerGate = options.getDouble("rate");
+		bursty = options.get("arrivals").equals("bursty");
+		if (!bursty && !options.get("arrivals").equals("poisson"))
+			throw new IllegalArgumentException("arrivals must be poisson or bursty");
+		burstSize = options.getDouble("burst");
+		burstGapNanos = (long) (options.getDouble("burstgap") * 1e6);
+		durationNanos = (long) (options.getDouble("duration") * 1e9);
+		apduLatencyNanos = (long) (options.getDouble("apdu") * 1e6);
+		commandLatencyNanos = (long) (options.getDouble("command") * 1e6);
+		exchange = Boolean.parseBoolean(options.get("exchange"));
+		safe = Boolean.parseBoolean(options.get("safe"));
+		String[] parts = options.get("mix").split(",");
+		if (parts.length != 3)
+			throw new IllegalArgumentException("mix must have three percentages");
+		mix = new int[3];
+		for (int i = 0; i < 3; i++) {
+			mix[i] = Integer.parseInt(parts[i].trim());
+			if (mix[i] < 0)
+				throw new IllegalArgumentException("mix percentages must not be negative");
+		}
+		if (mix[0] + mix[1] + mix[2] != 100)
+			throw new IllegalArgumentException("mix percentages must add up to 100");
+		cardsPerGate = options.getInt("cards");
+		seed = Long.parseLong(options.get("seed"));
+	}
+
+	/**
+	 * Results of one gate, merged into the totals after the run.
+	 */
+	static class GateStats {
+		final LatencyRecorder wait = new LatencyRecorder("wait");
+		final LatencyRecorder connect = new LatencyRecorder("connect");
+		final LatencyRecorder validate = new LatencyRecorder("validate");
+		final LatencyRecorder total = new LatencyRecorder("total");
+		final long[] reasons = new long[ValidationResult.Reason.values().length];
+		long apdus = 0;
+
+		void merge(GateStats other) {
+			wait.merge(other.wait);
+			connect.merge(other.connect);
+			validate.merge(other.validate);
+			total.merge(other.total);
+			for (int i = 0; i < reasons.length; i++)
+				reasons[i] += other.reasons[i];
+			apdus += other.apdus;
+		}
+	}
+
+	private class Gate implements Runnable {
+
+		final EmulatedTerminal terminal;
+		final EmulatedCardReader reader;
+		final UltralightCommands ul;
+		final Ticket ticket;
+		final byte[][] cards;
+		final Random random;
+		final long startNanos;
+		final GateStats stats = new GateStats();
+		Exception failure = null;
+
+		Gate(int number, byte[][] cards, long startNanos) throws Exception {
+			terminal = new EmulatedTerminal("Gate " + number);
+			terminal.setApduLatency(apduLatencyNanos);
+			terminal.setCommandLatency(commandLatencyNanos);
+			reader = new EmulatedCardReader(terminal, null, null);
+			reader.initReader();
+			reader.setTransparentExchange(exchange);
+			ul = new UltralightCommands(reader);
+			ul.safe = safe;
+			ticket = new Ticket(ul, null);
+			this.cards = cards;
+			this.random = new Random(seed + number);
+			this.startNanos = startNanos;
+		}
+
+		public void run() {
+			try {
+				long arrival = startNanos + nextGap();
+				int burstLeft = 0;
+				while (arrival - startNanos < durationNanos) {
+					long now = System.nanoTime();
+					if (arrival > now) LockSupport.parkNanos(arrival - now);
+					tap(arrival);
+
+					// Schedule the next rider.
+					if (bursty && burstLeft > 0) {
+						burstLeft--;
+						arrival += burstGapNanos;
+					} else {
+						arrival += nextGap();
+						// Geometric burst size with the given mean.
+						if (bursty)
+							burstLeft = (int) (Math.log(1 - random.nextDouble()) / Math
+									.log(1 - 1 / burstSize));
+					}
+				}
+				stats.apdus = terminal.getApduCount();
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+
+		// Exponential gap between riders, or between bursts of riders.
+		private long nextGap() {
+			double rate = bursty ? ratePerGate / burstSize : ratePerGate;
+			return (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+		}
+
+		private void tap(long arrival) throws Exception {
+			// Present a fresh copy of a random card from the pool.
+			byte[] card = cards[random.nextInt(cards.length)].clone();
+			long start = System.nanoTime();
+			terminal.insertCard(card);
+			if (!reader.initCard())
+				throw new Exception("Cannot connect to emulated card.");
+			long connected = System.nanoTime();
+			int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+			// One exclusive session per tap, so that a transparent session
+			// is started once for all the batches of the tap.
+			if (!reader.beginSession())
+				throw new Exception("Cannot start a session on emulated card.");
+			ValidationResult result;
+			try {
+				result = ticket.use(ul, currentTime);
+			} finally {
+				reader.endSession();
+			}
+			long done = System.nanoTime();
+			terminal.removeCard();
+
+			stats.wait.record(start - arrival);
+			stats.connect.record(connected - start);
+			stats.validate.record(done - connected);
+			stats.total.record(done - arrival);
+			stats.reasons[result.getReason().ordinal()]++;
+		}
+	}
+
+	// Issue the card pools and run all gates. Returns the merged results.
+	public GateStats run() throws Exception {
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+		CardFactory factory = new CardFactory();
+		Random random = new Random(seed);
+		byte[][][] pools = new byte[gates][cardsPerGate][];
+		for (int g = 0; g < gates; g++)
+			for (int c = 0; c < cardsPerGate; c++) {
+				int p = random.nextInt(100);
+				CardFactory.Kind kind = p < mix[0] ? CardFactory.Kind.VALID
+						: p < mix[0] + mix[1] ? CardFactory.Kind.EXPIRED
+								: CardFactory.Kind.EXHAUSTED;
+				pools[g][c] = factory.issue(((long) g << 32) + c, kind,
+						currentTime);
+			}
+
+		long startNanos = System.nanoTime() + 100 * 1000 * 1000;
+		List<Gate> gateList = new ArrayList<Gate>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int g = 0; g < gates; g++) {
+			Gate gate = new Gate(g, pools[g], startNanos);
+			Thread thread = new Thread(gate, "Gate " + g);
+			gateList.add(gate);
+			threads.add(thread);
+			thread.start();
+		}
+		GateStats total = new GateStats();
+		for (int g = 0; g < gates; g++) {
+			threads.get(g).join();
+			Gate gate = gateList.get(g);
+			if (gate.failure != null) throw gate.failure;
+			total.merge(gate.stats);
+		}
+		return total;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args,
+				"gates", "4", // Number of gates.
+				"rate", "0.5", // Mean riders per second per gate.
+				"arrivals", "poisson", // poisson or bursty
+				"burst", "8", // Mean riders per burst (bursty only).
+				"burstgap", "300", // Ms between riders in a burst.
+				"duration", "30", // Length of the run in seconds.
+				"apdu", "2.0", // Emulated APDU round trip in ms.
+				"command", "0.5", // Each further card command in an exchange, ms.
+				"exchange", "true", // Batch card commands in transparent exchanges.
+				"safe", "false", // Emulate OTP and locks like practice cards.
+				"mix", "80,10,10", // % valid, expired, exhausted tickets.
+				"cards", "200", // Cards in the pool of each gate.
+				"seed", "1");
+		GateLoadGenerator generator = new GateLoadGenerator(options);
+		System.out.println("Gate load test started " + new Date() + " with "
+				+ generator.gates + " gates, " + options.get("arrivals")
+				+ " arrivals at " + generator.ratePerGate
+				+ " riders/s/gate, " + options.get("apdu") + " ms per APDU"
+				+ (generator.exchange ? ", " + options.get("command")
+						+ " ms per further command in an exchange." : "."));
+
+		GateStats stats = generator.run();
+
+		int taps = stats.total.getCount();
+		System.out.printf("Taps: %d (%.1f taps/s), APDUs: %d (%.1f per tap)%n",
+				taps, taps / (generator.durationNanos / 1e9), stats.apdus,
+				taps == 0 ? 0.0 : (double) stats.apdus / taps);
+		for (ValidationResult.Reason reason : ValidationResult.Reason.values())
+			if (stats.reasons[reason.ordinal()] > 0)
+				System.out.println("  " + reason + ": "
+						+ stats.reasons[reason.ordinal()]);
+		LatencyRecorder.printHeader(System.out);
+		stats.wait.print(System.out);
+		stats.connect.print(System.out);
+		stats.validate.print(System.out);
+		stats.total.print(System.out);
+	}
+
+}
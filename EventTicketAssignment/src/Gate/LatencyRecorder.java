@@ -0,0 +1,78 @@
+package Gate;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Collects latency samples in nanoseconds and reports percentiles. Samples
+ * are kept in a growing array and sorted when a report is made. Not
+ * thread-safe: give each thread its own recorder and merge them.
+ */
+public class LatencyRecorder {
+
+	private final String name;
+	private long[] samples = new long[1024];
+	private int count = 0;
+	private boolean sorted = true;
+
+	public LatencyRecorder(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void record(long nanos) {
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, count * 2);
+		samples[count++] = nanos;
+		sorted = false;
+	}
+
+	public void merge(LatencyRecorder other) {
+		for (int i = 0; i < other.count; i++)
+			record(other.samples[i]);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void clear() {
+		count = 0;
+		sorted = true;
+	}
+
+	// The p-th percentile (0..100) in nanoseconds, or 0 without samples.
+	public long percentile(double p) {
+		if (count == 0) return 0;
+		if (!sorted) {
+			Arrays.sort(samples, 0, count);
+			sorted = true;
+		}
+		int i = (int) Math.ceil(p / 100 * count) - 1;
+		return samples[Math.max(0, Math.min(count - 1, i))];
+	}
+
+	public long mean() {
+		if (count == 0) return 0;
+		long sum = 0;
+		for (int i = 0; i < count; i++)
+			sum += samples[i];
+		return sum / count;
+	}
+
+	// Header line matching print().
+	public static void printHeader(PrintStream out) {
+		out.printf("%-12s %8s %9s %9s %9s %9s %9s%n", "Phase", "Count",
+				"Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms");
+	}
+
+	public void print(PrintStream out) {
+		out.printf("%-12s %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, count,
+				mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+				percentile(99) / 1e6, percentile(100) / 1e6);
+	}
+
+}
@@ -0,0 +1,96 @@
+package Gate;
+
+import java.net.URL;
+import Ticket.Ticket;
+import Ticket.ValidationResult;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * End-to-end run of hybrid online/offline validation against the local
+ * SyncStandInServer. Each phase taps a set of cards with the server fast,
+ * slow (slower than the tap budget) or unavailable, and prints the tap
+ * latency, the outcomes and the OnlineValidator counters. No tap may take
+ * longer than the offline validation plus the budget.
+ *
+ * Usage: OnlineScenario [budget=50] [cards=50] [apdu=1.0] [cache=60]
+ */
+public class OnlineScenario {
+
+	private final SyncStandInServer server;
+	private final OnlineValidator validator;
+	private final Ticket ticket;
+	private final EmulatedTerminal terminal;
+	private final EmulatedCardReader reader;
+	private final UltralightCommands ul;
+	private final byte[][] cards;
+
+	OnlineScenario(Options options) throws Exception {
+		server = new SyncStandInServer(0);
+		server.start();
+		validator = new OnlineValidator(new URL("http://localhost:"
+				+ server.getPort() + "/"), 4, options.getInt("cache"), 100000);
+
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+		CardFactory factory = new CardFactory();
+		cards = new byte[options.getInt("cards")][];
+		for (int i = 0; i < cards.length; i++)
+			cards[i] = factory.issue(i, CardFactory.Kind.VALID, currentTime);
+		terminal = new EmulatedTerminal("Online gate");
+		terminal.setApduLatency((long) (options.getDouble("apdu") * 1e6));
+		reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		ul = new UltralightCommands(reader);
+		ul.safe = false;
+		ticket = new Ticket(ul, System.out);
+		ticket.setOnlineCheck(validator, options.getInt("budget"));
+	}
+
+	private void phase(String name) throws Exception {
+		LatencyRecorder latency = new LatencyRecorder(name);
+		long[] reasons = new long[ValidationResult.Reason.values().length];
+		for (byte[] card : cards) {
+			terminal.insertCard(card.clone());
+			reader.initCard();
+			long start = System.nanoTime();
+			ValidationResult result = ticket.use(ul,
+					(int) (System.currentTimeMillis() / 1000 / 60));
+			latency.record(System.nanoTime() - start);
+			reasons[result.getReason().ordinal()]++;
+		}
+		latency.print(System.out);
+		StringBuilder outcome = new StringBuilder();
+		for (ValidationResult.Reason reason : ValidationResult.Reason.values())
+			if (reasons[reason.ordinal()] > 0)
+				outcome.append(" ").append(reason).append(" ")
+						.append(reasons[reason.ordinal()]);
+		System.out.printf("%12s%s; lookups %d, cache hits %d, skipped %d, failures %d%n",
+				"", outcome, validator.getLookups(), validator.getCacheHits(),
+				validator.getSkipped(), validator.getFailures());
+	}
+
+	void run() throws Exception {
+		server.deny(cards.length - 1);
+		LatencyRecorder.printHeader(System.out);
+		phase("fast");
+		phase("cached");
+		Thread.sleep(100);
+		server.deny(cards.length - 2);
+		server.setDelay(200);
+		phase("slow");
+		server.setDelay(0);
+		server.setAvailable(false);
+		phase("unavailable");
+		server.setAvailable(true);
+		validator.shutdown();
+		server.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args, "budget", "50", "cards", "50",
+				"apdu", "1.0", "cache", "60");
+		new OnlineScenario(options).run();
+	}
+
+}
@@ -0,0 +1,174 @@
+package Gate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import Ticket.OnlineCheck;
+import Ultralight.UltralightUtilities;
+
+/**
+ * OnlineCheck against the validation service (GET /validate?uid=<uid>,
+ * answered with "allow" or "deny"). Lookups run on a small thread pool
+ * with a bounded queue; when the pool is saturated the lookup is skipped
+ * and the tap is decided offline. Answers are cached for a while, and an
+ * answer that arrives after the tap deadline still goes into the cache for
+ * the next tap of the same card.
+ */
+public class OnlineValidator implements OnlineCheck {
+
+	private static class CacheEntry {
+		final boolean accepted;
+		final long expires; // System.nanoTime()
+
+		CacheEntry(boolean accepted, long expires) {
+			this.accepted = accepted;
+			this.expires = expires;
+		}
+	}
+
+	private static final Future<Boolean> noOpinion = done(null);
+	private static final Future<Boolean> accept = done(Boolean.TRUE);
+	private static final Future<Boolean> reject = done(Boolean.FALSE);
+
+	private final URL serverUrl;
+	private final ThreadPoolExecutor pool;
+	private final ConcurrentHashMap<Long, CacheEntry> cache = new ConcurrentHashMap<Long, CacheEntry>();
+	private final long cacheNanos;
+	private final int maxCacheEntries;
+	private volatile int timeoutMillis = 1000;
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param serverUrl
+	 *            Base URL of the validation service.
+	 * @param threads
+	 *            Number of concurrent lookups.
+	 * @param cacheSeconds
+	 *            How long an answer is reused.
+	 * @param maxCacheEntries
+	 *            The cache is cleared when it grows beyond this.
+	 */
+	public OnlineValidator(URL serverUrl, int threads, int cacheSeconds,
+			int maxCacheEntries) {
+		this.serverUrl = serverUrl;
+		this.cacheNanos = cacheSeconds * 1000L * 1000 * 1000;
+		this.maxCacheEntries = maxCacheEntries;
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 4),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Online validation");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.prestartAllCoreThreads();
+	}
+
+	// Connect and read timeout of one lookup. This bounds how long a pool
+	// thread is busy, not the tap, which has its own deadline.
+	public void setTimeout(int millis) {
+		timeoutMillis = millis;
+	}
+
+	public Future<Boolean> lookup(final long uid) {
+		CacheEntry entry = cache.get(uid);
+		if (entry != null && entry.expires - System.nanoTime() > 0) {
+			cacheHits.incrementAndGet();
+			return entry.accepted ? accept : reject;
+		}
+		try {
+			lookups.incrementAndGet();
+			return pool.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					Boolean accepted = query(uid);
+					// Failures are not cached, so a recovered server is
+					// used again right away.
+					if (accepted != null) {
+						if (cache.size() >= maxCacheEntries) cache.clear();
+						cache.put(uid, new CacheEntry(accepted, System
+								.nanoTime() + cacheNanos));
+					}
+					return accepted;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			skipped.incrementAndGet();
+			return noOpinion;
+		}
+	}
+
+	private Boolean query(long uid) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(
+					serverUrl, "validate?uid="
+							+ UltralightUtilities.uidToString(uid))
+					.openConnection();
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				failures.incrementAndGet();
+				return null;
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					connection.getInputStream(), "US-ASCII"));
+			String answer = in.readLine();
+			in.close();
+			if ("allow".equals(answer)) return Boolean.TRUE;
+			if ("deny".equals(answer)) return Boolean.FALSE;
+			failures.incrementAndGet();
+			return null;
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			return null;
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	private static Future<Boolean> done(final Boolean value) {
+		FutureTask<Boolean> task = new FutureTask<Boolean>(
+				new Callable<Boolean>() {
+					public Boolean call() {
+						return value;
+					}
+				});
+		task.run();
+		return task;
+	}
+
+}
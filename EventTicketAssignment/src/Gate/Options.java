@@ -0,0 +1,48 @@
+package Gate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command-line options of the form key=value for the gate tools. Unknown
+ * keys are rejected so that typos do not silently fall back to defaults.
+ */
+public class Options {
+
+	private final Map<String, String> values = new HashMap<String, String>();
+	private final Map<String, String> defaults = new HashMap<String, String>();
+
+	// Parse args against the allowed keys and their defaults, given as
+	// alternating key and default value.
+	public Options(String[] args, String... keysAndDefaults) {
+		for (int i = 0; i + 1 < keysAndDefaults.length; i += 2)
+			defaults.put(keysAndDefaults[i], keysAndDefaults[i + 1]);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !defaults.containsKey(arg.substring(0, eq)))
+				throw new IllegalArgumentException("Unknown option: " + arg
+						+ ". Options: " + defaults);
+			values.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+
+	public String get(String key) {
+		if (!defaults.containsKey(key))
+			throw new IllegalArgumentException("Bug: undeclared option " + key);
+		String value = values.get(key);
+		return value != null ? value : defaults.get(key);
+	}
+
+	public int getInt(String key) {
+		return Integer.parseInt(get(key));
+	}
+
+	public double getDouble(String key) {
+		return Double.parseDouble(get(key));
+	}
+
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(get(key));
+	}
+
+}
@@ -0,0 +1,234 @@
+package Gate;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import Ultralight.CardReader;
+
+/**
+ * Runs card operations of all readers of one host on a fixed number of
+ * worker threads, which stand for the CPU, key and journal capacity that
+ * the readers share. Every task belongs to a reader and a priority class.
+ * The tasks of one reader run one at a time and in the order they were
+ * submitted, whatever their priority, so the operations on its channel
+ * stay in order. Among the readers, a free worker takes the highest
+ * priority task that is next for an idle reader, so rider validations go
+ * ahead of maintenance work queued for other readers. A task that has
+ * started runs to the end; maintenance tasks should therefore be one card
+ * operation each.
+ *
+ * Bulk tasks are admitted only while fewer than maxQueuedBulk of them are
+ * waiting, and at most maxRunningBulk of them run at once, so a bulk job
+ * always leaves workers free for validations.
+ */
+public class ReaderScheduler {
+
+	public enum Priority {
+		VALIDATION, // A rider is waiting at a gate.
+		STAFF, // Single format, reissue, lock or erase at a staff terminal.
+		BULK // Batch jobs, e.g. re-encoding a stock of cards.
+	}
+
+	private class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+		final CardReader reader;
+		final Priority priority;
+		final long sequence;
+		final long queued = System.nanoTime();
+
+		Task(CardReader reader, Priority priority, long sequence, Callable<T> callable) {
+			super(callable);
+			this.reader = reader;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Task<?> other) {
+			if (priority != other.priority)
+				return priority.compareTo(other.priority);
+			return sequence < other.sequence ? -1
+					: sequence > other.sequence ? 1 : 0;
+		}
+	}
+
+	private final int maxRunningBulk;
+	private final int maxQueuedBulk;
+	private final Thread[] workers;
+
+	// Guarded by this.
+	private final TreeSet<Task<?>> queue = new TreeSet<Task<?>>();
+	private final Set<CardReader> busyReaders = new HashSet<CardReader>();
+	// Per priority: depth, max depth, completed, total wait ns, started.
+	private final EnumMap<Priority, long[]> stats = new EnumMap<Priority, long[]>(
+			Priority.class);
+	private long sequence = 0;
+	private int runningBulk = 0;
+	private long rejected = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * @param workers
+	 *            Number of tasks that may run at once on the host.
+	 * @param maxRunningBulk
+	 *            Number of bulk tasks that may run at once, at least one and
+	 *            less than workers.
+	 * @param maxQueuedBulk
+	 *            Bulk tasks beyond this many waiting are rejected.
+	 * @throws IllegalArgumentException
+	 *             If maxRunningBulk is out of range.
+	 */
+	public ReaderScheduler(int workers, int maxRunningBulk, int maxQueuedBulk) {
+		if (maxRunningBulk <= 0 || maxRunningBulk >= workers)
+			throw new IllegalArgumentException("Running bulk tasks must be 1.."
+					+ (workers - 1) + ": " + maxRunningBulk);
+		this.maxRunningBulk = maxRunningBulk;
+		this.maxQueuedBulk = maxQueuedBulk;
+		for (Priority priority : Priority.values())
+			stats.put(priority, new long[5]);
+		this.workers = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Thread(new Runnable() {
+				public void run() {
+					workerLoop();
+				}
+			}, "Reader scheduler " + i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Queue a card operation.
+	 *
+	 * @param reader
+	 *            The reader the operation uses. Operations of one reader run
+	 *            one at a time.
+	 * @param priority
+	 *            Priority class of the operation.
+	 * @param operation
+	 *            The operation. Its result or exception is available from the
+	 *            returned Future.
+	 * @throws RejectedExecutionException
+	 *             If the scheduler has been shut down, or if the operation is
+	 *             a bulk task and too many bulk tasks are waiting.
+	 */
+	public synchronized <T> Future<T> submit(CardReader reader,
+			Priority priority, Callable<T> operation) {
+		long[] s = stats.get(priority);
+		if (shutdown || (priority == Priority.BULK && s[0] >= maxQueuedBulk)) {
+			rejected++;
+			throw new RejectedExecutionException();
+		}
+		Task<T> task = new Task<T>(reader, priority, sequence++, operation);
+		queue.add(task);
+		s[0]++;
+		s[1] = Math.max(s[1], s[0]);
+		notifyAll();
+		return task;
+	}
+
+	// Let running tasks finish and cancel the waiting ones.
+	public synchronized void shutdown() {
+		shutdown = true;
+		for (Task<?> task : queue)
+			task.cancel(false);
+		queue.clear();
+		for (long[] s : stats.values())
+			s[0] = 0;
+		notifyAll();
+	}
+
+	// Wait until the workers have stopped after shutdown(). Returns false
+	// on timeout.
+	public boolean awaitTermination(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Thread worker : workers) {
+			worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if (worker.isAlive()) return false;
+		}
+		return true;
+	}
+
+	public synchronized int getQueueDepth(Priority priority) {
+		return (int) stats.get(priority)[0];
+	}
+
+	public synchronized int getMaxQueueDepth(Priority priority) {
+		return (int) stats.get(priority)[1];
+	}
+
+	public synchronized long getCompleted(Priority priority) {
+		return stats.get(priority)[2];
+	}
+
+	// Mean time in nanoseconds that started tasks waited in the queue.
+	public synchronized long getMeanQueueWait(Priority priority) {
+		long[] s = stats.get(priority);
+		return s[4] == 0 ? 0 : s[3] / s[4];
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	private void workerLoop() {
+		while (true) {
+			Task<?> task;
+			synchronized (this) {
+				while ((task = next()) == null) {
+					if (shutdown) return;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				long[] s = stats.get(task.priority);
+				s[0]--;
+				s[3] += System.nanoTime() - task.queued;
+				s[4]++;
+				busyReaders.add(task.reader);
+				if (task.priority == Priority.BULK) runningBulk++;
+			}
+			task.run();
+			synchronized (this) {
+				busyReaders.remove(task.reader);
+				if (task.priority == Priority.BULK) runningBulk--;
+				stats.get(task.priority)[2]++;
+				// A reader or a bulk slot became free.
+				notifyAll();
+			}
+		}
+	}
+
+	// Remove and return the first task in priority order that may run now:
+	// its reader is idle and has no older task in the queue.
+	private Task<?> next() {
+		Map<CardReader, Long> oldest = new HashMap<CardReader, Long>();
+		for (Task<?> task : queue) {
+			Long sequence = oldest.get(task.reader);
+			if (sequence == null || task.sequence < sequence)
+				oldest.put(task.reader, task.sequence);
+		}
+		Iterator<Task<?>> i = queue.iterator();
+		while (i.hasNext()) {
+			Task<?> task = i.next();
+			if (busyReaders.contains(task.reader)
+					|| oldest.get(task.reader) != task.sequence) continue;
+			if (task.priority == Priority.BULK && runningBulk >= maxRunningBulk)
+				break; // Only bulk tasks follow.
+			i.remove();
+			return task;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,211 @@
+package Gate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import Ticket.Ticket;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Gates and staff encoders on one host, scheduled by a ReaderScheduler. The
+ * gates validate riders arriving as a Poisson process while the encoders
+ * re-encode (format and issue) a stock of cards as fast as they are
+ * admitted. The validation latency, from arrival to the end of the tap, is
+ * printed for a phase without bulk work, one with bulk work in the BULK
+ * class, and one with bulk work queued like validations (first come first
+ * served) for comparison.
+ *
+ * Usage: SchedulerScenario [key=value ...], see main() for the keys.
+ */
+public class SchedulerScenario {
+
+	private final Options options;
+	private final byte[][] cards;
+	private final EmulatedTerminal[] gateTerminals;
+	private final EmulatedCardReader[] gateReaders;
+	private final UltralightCommands[] gateUls;
+	private final EmulatedTerminal[] encoderTerminals;
+	private final EmulatedCardReader[] encoderReaders;
+	private final Ticket[] encoderTickets;
+	private final Ticket ticket; // Shared by the gates.
+
+	SchedulerScenario(Options options) throws Exception {
+		this.options = options;
+		long apduNanos = (long) (options.getDouble("apdu") * 1e6);
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+		CardFactory factory = new CardFactory();
+		cards = new byte[100][];
+		for (int i = 0; i < cards.length; i++)
+			cards[i] = factory.issue(i, CardFactory.Kind.VALID, currentTime);
+
+		int gates = options.getInt("gates");
+		gateTerminals = new EmulatedTerminal[gates];
+		gateReaders = new EmulatedCardReader[gates];
+		gateUls = new UltralightCommands[gates];
+		for (int i = 0; i < gates; i++) {
+			gateTerminals[i] = new EmulatedTerminal("Gate " + i);
+			gateTerminals[i].setApduLatency(apduNanos);
+			gateReaders[i] = new EmulatedCardReader(gateTerminals[i], null, null);
+			gateReaders[i].initReader();
+			gateUls[i] = new UltralightCommands(gateReaders[i]);
+			gateUls[i].safe = false;
+		}
+		ticket = new Ticket(gateUls[0], null);
+
+		int encoders = options.getInt("encoders");
+		encoderTerminals = new EmulatedTerminal[encoders];
+		encoderReaders = new EmulatedCardReader[encoders];
+		encoderTickets = new Ticket[encoders];
+		for (int i = 0; i < encoders; i++) {
+			encoderTerminals[i] = new EmulatedTerminal("Encoder " + i);
+			encoderTerminals[i].setApduLatency(apduNanos);
+			encoderReaders[i] = new EmulatedCardReader(encoderTerminals[i], null, null);
+			encoderReaders[i].initReader();
+			UltralightCommands ul = new UltralightCommands(encoderReaders[i]);
+			ul.safe = false;
+			encoderTickets[i] = new Ticket(ul, null);
+		}
+	}
+
+	// Validate one rider at a gate. Returns the time the tap ended.
+	private Callable<Long> validation(final int gate, final byte[] card) {
+		return new Callable<Long>() {
+			public Long call() throws Exception {
+				gateTerminals[gate].insertCard(card);
+				gateReaders[gate].initCard();
+				ticket.use(gateUls[gate],
+						(int) (System.currentTimeMillis() / 1000 / 60));
+				gateTerminals[gate].removeCard();
+				return System.nanoTime();
+			}
+		};
+	}
+
+	// Re-encode one card at a staff encoder.
+	private Callable<Long> reencode(final int encoder, final long uid) {
+		return new Callable<Long>() {
+			public Long call() throws Exception {
+				encoderTerminals[encoder].insertCard(EmulatedTerminal.blankCard(uid));
+				encoderReaders[encoder].initCard();
+				int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+				if (!encoderTickets[encoder].format()
+						|| !encoderTickets[encoder].issue(currentTime + 30 * 24 * 60, 10))
+					throw new Exception("Re-encoding failed.");
+				encoderTerminals[encoder].removeCard();
+				return System.nanoTime();
+			}
+		};
+	}
+
+	/**
+	 * Run one phase.
+	 *
+	 * @param bulk
+	 *            Priority class of the re-encoding, or null for none.
+	 */
+	private void phase(String name, final ReaderScheduler.Priority bulk)
+			throws Exception {
+		int workers = options.getInt("workers");
+		// Without priorities the bulk work is not submitted as BULK, so it
+		// may use every worker.
+		final ReaderScheduler scheduler = new ReaderScheduler(workers,
+				bulk == ReaderScheduler.Priority.BULK ? options.getInt("bulkworkers")
+						: workers - 1, options.getInt("bulkqueue"));
+		final long durationNanos = (long) (options.getDouble("duration") * 1e9);
+		final long start = System.nanoTime() + 100 * 1000 * 1000;
+		final long[] reencoded = new long[1];
+
+		// Each encoder keeps up to two cards of its own in the queue.
+		List<Thread> feeders = new ArrayList<Thread>();
+		if (bulk != null)
+			for (int e = 0; e < encoderReaders.length; e++) {
+				final int encoder = e;
+				Thread feeder = new Thread(new Runnable() {
+					public void run() {
+						List<Future<Long>> pending = new ArrayList<Future<Long>>();
+						long uid = (long) encoder << 32;
+						try {
+							while (System.nanoTime() - start < durationNanos) {
+								if (pending.size() == 2) pending.remove(0).get();
+								try {
+									pending.add(scheduler.submit(encoderReaders[encoder],
+											bulk, reencode(encoder, uid)));
+									uid++;
+								} catch (RejectedExecutionException ex) {
+									Thread.sleep(10);
+								}
+							}
+							for (Future<Long> f : pending)
+								f.get();
+							synchronized (reencoded) {
+								reencoded[0] += uid - ((long) encoder << 32);
+							}
+						} catch (Exception ex) {
+							ex.printStackTrace();
+						}
+					}
+				}, "Feeder " + e);
+				feeders.add(feeder);
+				feeder.start();
+			}
+
+		// Submit the validations at their arrival times.
+		Random random = new Random(1);
+		double rate = options.getDouble("rate") * gateReaders.length;
+		List<Long> arrivals = new ArrayList<Long>();
+		List<Future<Long>> taps = new ArrayList<Future<Long>>();
+		long arrival = start;
+		while (true) {
+			arrival += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+			if (arrival - start >= durationNanos) break;
+			long now = System.nanoTime();
+			if (arrival > now) LockSupport.parkNanos(arrival - now);
+			int gate = random.nextInt(gateReaders.length);
+			arrivals.add(arrival);
+			taps.add(scheduler.submit(gateReaders[gate],
+					ReaderScheduler.Priority.VALIDATION,
+					validation(gate, cards[random.nextInt(cards.length)].clone())));
+		}
+
+		LatencyRecorder latency = new LatencyRecorder(name);
+		for (int i = 0; i < taps.size(); i++)
+			latency.record(taps.get(i).get() - arrivals.get(i));
+		for (Thread feeder : feeders)
+			feeder.join();
+		scheduler.shutdown();
+
+		latency.print(System.out);
+		System.out.printf("%12s re-encoded %d, rejected %d, max queue depth %d validation / %d bulk, mean queue wait %.3f ms%n",
+				"", reencoded[0], scheduler.getRejected(),
+				scheduler.getMaxQueueDepth(ReaderScheduler.Priority.VALIDATION),
+				scheduler.getMaxQueueDepth(ReaderScheduler.Priority.BULK),
+				scheduler.getMeanQueueWait(ReaderScheduler.Priority.VALIDATION) / 1e6);
+	}
+
+	void run() throws Exception {
+		LatencyRecorder.printHeader(System.out);
+		phase("no bulk", null);
+		phase("bulk", ReaderScheduler.Priority.BULK);
+		phase("bulk fifo", ReaderScheduler.Priority.VALIDATION);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args,
+				"gates", "4", // Gate readers.
+				"encoders", "4", // Staff encoder readers.
+				"workers", "4", // Tasks running at once on the host.
+				"bulkworkers", "2", // Bulk tasks running at once.
+				"bulkqueue", "4", // Bulk tasks waiting at most.
+				"rate", "2", // Mean riders per second per gate.
+				"duration", "10", // Length of each phase in seconds.
+				"apdu", "2.0"); // Emulated APDU round trip in ms.
+		new SchedulerScenario(options).run();
+	}
+
+}
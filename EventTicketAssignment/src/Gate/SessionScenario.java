@@ -0,0 +1,145 @@
+package Gate;
+
+import java.util.concurrent.CountDownLatch;
+import Ticket.Ticket;
+import Ultralight.CardReader;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Compares taps that connect to the card with initCard() and send every
+ * APDU through PC/SC arbitration with taps that run in one exclusive
+ * session on a reused connection. Prints the tap latency, the APDUs per
+ * tap and the mean APDU round trip seen by the CardReader of each mode.
+ *
+ * Then it shows the session watchdog: a holder that stalls inside a session
+ * is expired after the maximum session time, its next APDU fails, and a
+ * second connection to the same reader gets the card.
+ *
+ * Usage: SessionScenario [key=value ...], see main() for the keys.
+ */
+public class SessionScenario {
+
+	private final Options options;
+	private final byte[][] cards;
+	private final EmulatedTerminal terminal;
+
+	SessionScenario(Options options) throws Exception {
+		this.options = options;
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+		CardFactory factory = new CardFactory();
+		cards = new byte[options.getInt("cards")][];
+		for (int i = 0; i < cards.length; i++)
+			cards[i] = factory.issue(i, CardFactory.Kind.VALID, currentTime);
+		terminal = new EmulatedTerminal("Session gate");
+		terminal.setApduLatency((long) (options.getDouble("apdu") * 1e6));
+		terminal.setArbitrationLatency((long) (options.getDouble("arbitration") * 1e6));
+	}
+
+	private void phase(String name, boolean sessions) throws Exception {
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		UltralightCommands ul = new UltralightCommands(reader);
+		ul.safe = false;
+		Ticket ticket = new Ticket(ul, null);
+		LatencyRecorder latency = new LatencyRecorder(name);
+		long apdus = terminal.getApduCount();
+		for (byte[] card : cards) {
+			terminal.insertCard(card.clone());
+			int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+			long start = System.nanoTime();
+			if (sessions) {
+				if (!reader.beginSession())
+					throw new Exception("Cannot start a session.");
+				try {
+					ticket.use(ul, currentTime);
+				} finally {
+					reader.endSession();
+				}
+			} else {
+				if (!reader.initCard())
+					throw new Exception("Cannot connect to emulated card.");
+				ticket.use(ul, currentTime);
+			}
+			latency.record(System.nanoTime() - start);
+			terminal.removeCard();
+		}
+		latency.print(System.out);
+		System.out.printf("%12s %.1f APDUs per tap, mean APDU %.3f ms, %d connects%n",
+				"", (double) (terminal.getApduCount() - apdus) / cards.length,
+				reader.getApduNanos() / 1e6 / reader.getApduCount(),
+				sessions ? reader.getReconnects() : cards.length);
+	}
+
+	// A holder stalls in its session; another connection waits for the card.
+	private void watchdog() throws Exception {
+		final long maxSession = options.getInt("maxsession");
+		terminal.insertCard(cards[0].clone());
+		final EmulatedCardReader holder = new EmulatedCardReader(terminal, null, null);
+		holder.initReader();
+		holder.setMaxSessionTime(maxSession);
+		final UltralightCommands holderUl = new UltralightCommands(holder);
+		final boolean[] outcome = new boolean[2];
+		final CountDownLatch holding = new CountDownLatch(1);
+		final long start = System.nanoTime();
+		Thread stalled = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (!holder.beginSession()) return;
+					try {
+						byte[] page = new byte[4];
+						outcome[0] = holderUl.readBinary(4, page, 0);
+						holding.countDown();
+						try {
+							Thread.sleep(60 * 1000); // E.g. a hung back end.
+						} catch (InterruptedException e) {
+							// Expired by the watchdog.
+						}
+						outcome[1] = holderUl.readBinary(4, page, 0);
+					} finally {
+						holder.endSession();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					holding.countDown();
+				}
+			}
+		}, "Stalled holder");
+		stalled.start();
+		holding.await();
+
+		CardReader other = new EmulatedCardReader(terminal, null, null);
+		other.initReader();
+		other.initCard();
+		UltralightCommands otherUl = new UltralightCommands(other);
+		byte[] page = new byte[4];
+		boolean read = otherUl.readBinary(4, page, 0);
+		long waited = System.nanoTime() - start;
+		stalled.join();
+		System.out.printf("Watchdog: holder read %s then %s, expired %d; other connection read %s after %.1f ms (max session %d ms)%n",
+				outcome[0] ? "ok" : "failed", outcome[1] ? "ok" : "failed",
+				holder.getExpiredSessions(), read ? "ok" : "failed",
+				waited / 1e6, maxSession);
+	}
+
+	void run() throws Exception {
+		System.out.printf("APDU %.1f ms, arbitration %.1f ms per grant%n",
+				options.getDouble("apdu"), options.getDouble("arbitration"));
+		LatencyRecorder.printHeader(System.out);
+		phase("per APDU", false);
+		phase("session", true);
+		watchdog();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args,
+				"cards", "200", // Taps per mode.
+				"apdu", "2.0", // Emulated APDU round trip in ms.
+				"arbitration", "0.5", // Emulated PC/SC grant of the card in ms.
+				"maxsession", "500"); // Session watchdog limit in ms.
+		new SessionScenario(options).run();
+	}
+
+}
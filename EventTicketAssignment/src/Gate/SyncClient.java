@@ -0,0 +1,357 @@
+package Gate;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import Ticket.Denylist;
+import Ticket.KeyDistribution;
+import Ticket.KeyRing;
+import Ticket.TicketListener;
+import Ticket.ValidationResult;
+
+/**
+ * Background synchronization of a gate with the back office. Registered as
+ * a TicketListener, it puts a record of every tap into a bounded queue
+ * without blocking; if the queue is full the record is dropped and
+ * counted. One background thread uploads the records in gzip-compressed
+ * batches and polls for incremental denylist and key updates.
+ *
+ * While an upload keeps failing the thread holds on to the batch and
+ * retries with exponential backoff, and stops taking records from the
+ * queue. The queue then fills up and further taps are dropped, so a slow
+ * or unavailable server costs the gates memory for one queue at most.
+ * Delivery is at least once: a batch whose response times out is sent
+ * again, even if the server did get it.
+ *
+ * Protocol:
+ *   POST /taps     gzip body: int count, then per tap: long uid,
+ *                  long time (ms), byte reason, int expiry, int remaining
+ *   GET  /updates?since=<version>
+ *                  text lines: "version <n>", then one line per change:
+ *                  "deny <uid>", "allow <uid>", "key ...", "current ..."
+ *                  with the UID in hex. Change i after <version> is
+ *                  version <version> + i.
+ *
+ * Every line is authenticated under the distribution key, see
+ * Ticket.KeyDistribution: a change with its own version, and the version
+ * line with the version asked for. The key lines are encrypted too. The
+ * changes of a poll are applied together, and only if every line is
+ * authentic and the response has exactly the changes up to its version.
+ * Otherwise nothing is applied and the updates are fetched again.
+ */
+public class SyncClient implements TicketListener {
+
+	// One tap, as queued for upload.
+	static class TapRecord {
+		final long uid;
+		final long time;
+		final ValidationResult result;
+
+		TapRecord(long uid, long time, ValidationResult result) {
+			this.uid = uid;
+			this.time = time;
+			this.result = result;
+		}
+	}
+
+	private final URL serverUrl;
+	private final String gateId;
+	private final Denylist denylist;
+	private final BlockingQueue<TapRecord> queue;
+	private final int batchSize;
+	private final KeyDistribution keyDistribution;
+	private volatile KeyRing keyRing = null;
+
+	private long flushIntervalMillis = 1000;
+	private long pollIntervalMillis = 5000;
+	private int timeoutMillis = 2000;
+	private long maxBackoffMillis = 30000;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	private final AtomicLong rejectedUpdates = new AtomicLong();
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	/**
+	 * @param serverUrl
+	 *            Base URL of the sync service, e.g. http://localhost:8080/
+	 * @param gateId
+	 *            Name of this gate, sent with every upload.
+	 * @param denylist
+	 *            Denylist to keep up to date, normally the one given to
+	 *            Ticket.setDenylist().
+	 * @param keyDistribution
+	 *            Checks the updates, and decrypts the keys, with the
+	 *            distribution key provisioned to this gate.
+	 * @param queueCapacity
+	 *            Maximum number of taps waiting for upload.
+	 * @param batchSize
+	 *            Maximum number of taps in one upload.
+	 */
+	public SyncClient(URL serverUrl, String gateId, Denylist denylist,
+			KeyDistribution keyDistribution, int queueCapacity, int batchSize) {
+		this.serverUrl = serverUrl;
+		this.gateId = gateId;
+		this.denylist = denylist;
+		this.keyDistribution = keyDistribution;
+		this.queue = new ArrayBlockingQueue<TapRecord>(queueCapacity);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Apply key updates to a key ring. Without a key ring, key updates are
+	 * checked but ignored. No other thread may change the key ring while
+	 * the client runs.
+	 *
+	 * @param keyRing
+	 *            Key ring, normally the one given to Ticket.setKeyRing().
+	 */
+	public void setKeyRing(KeyRing keyRing) {
+		this.keyRing = keyRing;
+	}
+
+	// Upload a partial batch after this long. Set before start().
+	public void setFlushInterval(long millis) {
+		flushIntervalMillis = millis;
+	}
+
+	// Poll for updates this often. Set before start().
+	public void setPollInterval(long millis) {
+		pollIntervalMillis = millis;
+	}
+
+	// Connect and read timeout of each request. Set before start().
+	public void setTimeout(int millis) {
+		timeoutMillis = millis;
+	}
+
+	public void ticketValidated(long uid, ValidationResult result, boolean used) {
+		if (!used) return;
+		if (!queue.offer(new TapRecord(uid, System.currentTimeMillis(), result)))
+			dropped.incrementAndGet();
+	}
+
+	public long getQueued() {
+		return queue.size();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getUploaded() {
+		return uploaded.get();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.get();
+	}
+
+	// Polls with an update that was not authentic.
+	public long getRejectedUpdates() {
+		return rejectedUpdates.get();
+	}
+
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				syncLoop();
+			}
+		}, "Sync " + gateId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Stop the background thread after one last attempt to upload.
+	public synchronized void stop() throws InterruptedException {
+		if (!running) return;
+		running = false;
+		thread.interrupt();
+		thread.join();
+	}
+
+	private void syncLoop() {
+		List<TapRecord> batch = new ArrayList<TapRecord>();
+		long backoff = flushIntervalMillis;
+		long nextUpload = 0;
+		long nextPoll = 0;
+		while (running) {
+			try {
+				long now = System.currentTimeMillis();
+				if (now >= nextPoll) {
+					nextPoll = now + (poll() ? pollIntervalMillis : backoff);
+					continue;
+				}
+				if (batch.isEmpty()) {
+					// Wait until the batch is full or the flush interval ends.
+					long deadline = Math.min(now + flushIntervalMillis, nextPoll);
+					while (batch.size() < batchSize) {
+						long left = deadline - System.currentTimeMillis();
+						TapRecord record = queue.poll(Math.max(left, 0),
+								TimeUnit.MILLISECONDS);
+						if (record == null) break;
+						batch.add(record);
+						queue.drainTo(batch, batchSize - batch.size());
+					}
+				} else if (now < nextUpload)
+					Thread.sleep(Math.min(nextUpload, nextPoll) - now);
+
+				if (!batch.isEmpty() && System.currentTimeMillis() >= nextUpload) {
+					if (upload(batch)) {
+						uploaded.addAndGet(batch.size());
+						batch.clear();
+						backoff = flushIntervalMillis;
+					} else {
+						nextUpload = System.currentTimeMillis() + backoff;
+						backoff = Math.min(backoff * 2, maxBackoffMillis);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stop() was called.
+			}
+		}
+		queue.drainTo(batch);
+		if (!batch.isEmpty() && upload(batch)) uploaded.addAndGet(batch.size());
+	}
+
+	private boolean upload(List<TapRecord> batch) {
+		try {
+			HttpURLConnection connection = open("taps");
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/octet-stream");
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setRequestProperty("X-Gate-Id", gateId);
+			OutputStream body = connection.getOutputStream();
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(body));
+			out.writeInt(batch.size());
+			for (TapRecord record : batch) {
+				out.writeLong(record.uid);
+				out.writeLong(record.time);
+				out.writeByte(record.result.getReason().ordinal());
+				out.writeInt(record.result.getExpiryTime());
+				out.writeInt(record.result.getRemainingUses());
+			}
+			out.close();
+			InputStream response = finish(connection);
+			if (response == null) return false;
+			response.close();
+			return true;
+		} catch (IOException e) {
+			failedRequests.incrementAndGet();
+			return false;
+		}
+	}
+
+	// Fetch and apply updates newer than the current denylist version.
+	private boolean poll() {
+		List<Long> added = new ArrayList<Long>();
+		List<Long> removed = new ArrayList<Long>();
+		long version = -1;
+		long since = denylist.getVersion();
+		long change = since;
+		KeyRing ring = keyRing;
+		KeyRing keys = null; // Copy of the ring with the key updates.
+		try {
+			HttpURLConnection connection = open("updates?since=" + since);
+			InputStream body = finish(connection);
+			if (body == null) return false;
+			BufferedReader in = new BufferedReader(new InputStreamReader(body,
+					"US-ASCII"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (version < 0) {
+					String[] words = keyDistribution.verify(since, line).split(" ");
+					if (!words[0].equals("version") || words.length != 2)
+						throw new IllegalArgumentException("No version: " + line);
+					version = Long.parseLong(words[1]);
+					continue;
+				}
+				if (++change > version)
+					throw new IllegalArgumentException("Update after version "
+							+ version + ": " + line);
+				String[] words = line.trim().split(" ");
+				if (words[0].equals("key") || words[0].equals("current")) {
+					if (ring == null) {
+						keyDistribution.verify(change, line);
+						continue;
+					}
+					if (keys == null) keys = ring.copy();
+					keyDistribution.apply(keys, change, line);
+					continue;
+				}
+				words = keyDistribution.verify(change, line).split(" ");
+				if (words[0].equals("deny"))
+					added.add(Long.parseLong(words[1], 16));
+				else if (words[0].equals("allow"))
+					removed.add(Long.parseLong(words[1], 16));
+			}
+			in.close();
+		} catch (IOException e) {
+			failedRequests.incrementAndGet();
+			return false;
+		} catch (GeneralSecurityException e) {
+			// Not authentic, or the key could not be decrypted.
+			rejectedUpdates.incrementAndGet();
+			failedRequests.incrementAndGet();
+			return false;
+		} catch (RuntimeException e) {
+			// Malformed update. Try again later.
+			failedRequests.incrementAndGet();
+			return false;
+		}
+		// A response without a version or with changes missing at the end
+		// was cut short.
+		if (version < 0 || change < version) {
+			failedRequests.incrementAndGet();
+			return false;
+		}
+		if (keys != null) ring.set(keys);
+		if (version > since)
+			denylist.update(toArray(added), toArray(removed), version);
+		return true;
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl,
+				path).openConnection();
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		return connection;
+	}
+
+	// Response body on HTTP 200, otherwise null.
+	private InputStream finish(HttpURLConnection connection) throws IOException {
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+			return connection.getInputStream();
+		failedRequests.incrementAndGet();
+		InputStream error = connection.getErrorStream();
+		if (error != null) error.close();
+		return null;
+	}
+
+	private static long[] toArray(List<Long> list) {
+		long[] array = new long[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+}
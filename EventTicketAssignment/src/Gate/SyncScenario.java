@@ -0,0 +1,133 @@
+package Gate;
+
+import java.net.URL;
+import Ticket.Denylist;
+import Ticket.KeyDistribution;
+import Ticket.KeyRing;
+import Ticket.Ticket;
+import Ticket.ValidationResult;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * End-to-end run of a gate with SyncClient against SyncStandInServer, all
+ * on localhost. It taps cards through phases with a normal, slow and
+ * unavailable server, and prints tap latency and the sync counters after
+ * each phase. A denylisted card must be rejected once the update arrives,
+ * and after a key rotation a tap must move a card to the new key.
+ *
+ * Usage: SyncScenario [taps=200] [queue=100] [apdu=1.0]
+ */
+public class SyncScenario {
+
+	private final Ticket ticket;
+	private final UltralightCommands ul;
+	private final EmulatedTerminal terminal;
+	private final EmulatedCardReader reader;
+	private final byte[] card;
+	private final SyncClient client;
+	private final SyncStandInServer server;
+
+	SyncScenario(Options options) throws Exception {
+		server = new SyncStandInServer(0);
+		server.start();
+
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+		card = new CardFactory().issue(1, CardFactory.Kind.VALID, currentTime);
+		terminal = new EmulatedTerminal("Scenario gate");
+		terminal.setApduLatency((long) (options.getDouble("apdu") * 1e6));
+		reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		ul = new UltralightCommands(reader);
+		ul.safe = false;
+		ticket = new Ticket(ul, System.out);
+
+		Denylist denylist = new Denylist();
+		ticket.setDenylist(denylist);
+		KeyRing keyRing = new KeyRing();
+		ticket.setKeyRing(keyRing, true);
+		// The gate and the back office share the distribution key that
+		// protects the updates.
+		byte[] distributionKey = "scenario distribution key".getBytes("US-ASCII");
+		server.setKeyDistribution(new KeyDistribution(distributionKey));
+		client = new SyncClient(new URL("http://localhost:" + server.getPort()
+				+ "/"), "scenario", denylist, new KeyDistribution(distributionKey),
+				options.getInt("queue"), 50);
+		client.setFlushInterval(200);
+		client.setPollInterval(200);
+		client.setTimeout(500);
+		client.setKeyRing(keyRing);
+		ticket.addListener(client);
+		client.start();
+	}
+
+	// Tap the card n times and print the latencies and counters.
+	private ValidationResult phase(String name, int n) throws Exception {
+		LatencyRecorder latency = new LatencyRecorder(name);
+		ValidationResult result = null;
+		for (int i = 0; i < n; i++) {
+			terminal.insertCard(card.clone());
+			reader.initCard();
+			long start = System.nanoTime();
+			result = ticket.use(ul, (int) (System.currentTimeMillis() / 1000 / 60));
+			latency.record(System.nanoTime() - start);
+			Thread.sleep(5);
+		}
+		Thread.sleep(1000);
+		latency.print(System.out);
+		System.out.printf("%12s queued %d, dropped %d, uploaded %d, received %d, failed requests %d%n",
+				"", client.getQueued(), client.getDropped(),
+				client.getUploaded(), server.getTapsReceived(),
+				client.getFailedRequests());
+		return result;
+	}
+
+	void run(int taps) throws Exception {
+		LatencyRecorder.printHeader(System.out);
+		phase("normal", taps);
+		server.setDelay(1500); // Longer than the client timeout.
+		phase("slow", taps);
+		server.setDelay(0);
+		server.setAvailable(false);
+		phase("unavailable", taps);
+		server.setAvailable(true);
+		Thread.sleep(2000); // Let the backoff expire.
+		phase("recovered", taps);
+
+		server.deny(1);
+		Thread.sleep(1000);
+		ValidationResult result = phase("denylisted", 1);
+		System.out.println("Denylisted card: " + result.getReason()
+				+ (result.getReason() == ValidationResult.Reason.DENYLISTED ? " (ok)"
+						: " (WRONG)"));
+
+		// Rotate to key 1. The card, issued with the built-in key 0, is
+		// moved to key 1 by a normal tap and stays valid.
+		server.addKey(1, new byte[] { 0x10, 0x32, 0x54, 0x76, (byte) 0x98,
+				(byte) 0xBA, (byte) 0xDC, (byte) 0xFE, 0x01, 0x23, 0x45, 0x67,
+				(byte) 0x89, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF });
+		server.setCurrentKey(1);
+		Thread.sleep(1000);
+		byte[] rotated = new CardFactory().issue(2, CardFactory.Kind.VALID,
+				(int) (System.currentTimeMillis() / 1000 / 60));
+		terminal.insertCard(rotated); // Not a copy: keep what the taps write.
+		reader.initCard();
+		result = ticket.use(ul, (int) (System.currentTimeMillis() / 1000 / 60));
+		ValidationResult again = ticket.use(ul,
+				(int) (System.currentTimeMillis() / 1000 / 60));
+		System.out.println("Rotated card: key " + (rotated[25] & 0x7F) + ", "
+				+ result.getReason() + " then " + again.getReason()
+				+ ((rotated[25] & 0x7F) == 1 && again.isValid() ? " (ok)" : " (WRONG)"));
+
+		client.stop();
+		server.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args, "taps", "200", "queue", "100",
+				"apdu", "1.0");
+		new SyncScenario(options).run(options.getInt("taps"));
+	}
+
+}
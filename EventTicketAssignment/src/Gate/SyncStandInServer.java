@@ -0,0 +1,244 @@
+package Gate;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import Ticket.KeyDistribution;
+import Ultralight.UltralightUtilities;
+
+/**
+ * Local stand-in for the back-office sync and validation services, so that
+ * SyncClient and OnlineValidator can be tried end to end without a network.
+ * It accepts tap uploads, serves denylist and key updates from an
+ * in-memory change log, answers online validation requests from the same
+ * denylist, and can be made slow or unavailable to test how the gates
+ * cope.
+ *
+ * Usage: SyncStandInServer [port=8080] [delay=0] [deny=uid,uid,...]
+ *          [distribution=<distribution key text>]
+ */
+public class SyncStandInServer {
+
+	private final HttpServer server;
+	private final List<String> changes = new ArrayList<String>(); // Version i+1 is changes[i].
+	private final Set<Long> denied = new HashSet<Long>();
+	private final AtomicLong tapsReceived = new AtomicLong();
+	private final AtomicLong batchesReceived = new AtomicLong();
+	private volatile long delayMillis = 0;
+	private volatile boolean available = true;
+	private KeyDistribution keyDistribution = null;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	public SyncStandInServer(int port) throws IOException {
+		// Without TCP_NODELAY every small response waits for a delayed ACK
+		// (about 40 ms on Linux), which would hide the real latencies.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/taps", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!admit(exchange)) return;
+				receiveTaps(exchange);
+			}
+		});
+		server.createContext("/updates", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!admit(exchange)) return;
+				sendUpdates(exchange);
+			}
+		});
+		server.createContext("/validate", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!admit(exchange)) return;
+				sendValidation(exchange);
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	// Delay every response by this long to simulate a slow server.
+	public void setDelay(long millis) {
+		delayMillis = millis;
+	}
+
+	// When unavailable, every request gets HTTP 503.
+	public void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	public synchronized void deny(long uid) {
+		changes.add("deny " + UltralightUtilities.uidToString(uid));
+		denied.add(uid);
+	}
+
+	public synchronized void allow(long uid) {
+		changes.add("allow " + UltralightUtilities.uidToString(uid));
+		denied.remove(uid);
+	}
+
+	// Authenticate the updates with the distribution key of the gates.
+	// Needed before addKey() and setCurrentKey(), and for the gates to
+	// accept any update.
+	public synchronized void setKeyDistribution(KeyDistribution keyDistribution) {
+		this.keyDistribution = keyDistribution;
+	}
+
+	public synchronized void addKey(int keyId, byte[] key)
+			throws GeneralSecurityException {
+		changes.add(keyDistribution().keyLine(changes.size() + 1, keyId, key));
+	}
+
+	// Make the gates issue and re-MAC with this key.
+	public synchronized void setCurrentKey(int keyId)
+			throws GeneralSecurityException {
+		changes.add(keyDistribution().currentLine(changes.size() + 1, keyId));
+	}
+
+	private KeyDistribution keyDistribution() {
+		if (keyDistribution == null)
+			throw new IllegalStateException("No distribution key for key updates.");
+		return keyDistribution;
+	}
+
+	// Deny and allow lines are authenticated when they are sent, key lines
+	// when they are made. Without a distribution key they are sent as they
+	// are, and the gates reject them.
+	private String authenticate(long version, String line)
+			throws GeneralSecurityException {
+		if (keyDistribution == null || line.startsWith("key ")
+				|| line.startsWith("current "))
+			return line;
+		return keyDistribution.authenticate(version, line);
+	}
+
+	public long getTapsReceived() {
+		return tapsReceived.get();
+	}
+
+	public long getBatchesReceived() {
+		return batchesReceived.get();
+	}
+
+	// Apply the delay and availability settings. Returns false if the
+	// request has already been answered.
+	private boolean admit(HttpExchange exchange) throws IOException {
+		try {
+			if (delayMillis > 0) Thread.sleep(delayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (available) return true;
+		exchange.sendResponseHeaders(503, -1);
+		exchange.close();
+		return false;
+	}
+
+	private void receiveTaps(HttpExchange exchange) throws IOException {
+		InputStream body = exchange.getRequestBody();
+		DataInputStream in = new DataInputStream(new GZIPInputStream(body));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			in.readLong(); // uid
+			in.readLong(); // time
+			in.readByte(); // reason
+			in.readInt(); // expiry
+			in.readInt(); // remaining
+		}
+		in.close();
+		tapsReceived.addAndGet(count);
+		batchesReceived.incrementAndGet();
+		exchange.sendResponseHeaders(200, -1);
+		exchange.close();
+	}
+
+	private void sendUpdates(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		int since = 0;
+		if (query != null && query.startsWith("since="))
+			since = Integer.parseInt(query.substring(6));
+		StringBuilder text = new StringBuilder();
+		try {
+			synchronized (this) {
+				// The version line is bound to the version asked for.
+				text.append(authenticate(since, "version " + changes.size()))
+						.append('\n');
+				for (int i = since; i < changes.size(); i++)
+					text.append(authenticate(i + 1, changes.get(i))).append('\n');
+			}
+		} catch (GeneralSecurityException e) {
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+			return;
+		}
+		byte[] response = text.toString().getBytes("US-ASCII");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(200, response.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response);
+		out.close();
+	}
+
+	private void sendValidation(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		boolean deny = false;
+		if (query != null && query.startsWith("uid="))
+			synchronized (this) {
+				deny = denied.contains(Long.parseLong(query.substring(4), 16));
+			}
+		byte[] response = (deny ? "deny\n" : "allow\n").getBytes("US-ASCII");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(200, response.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response);
+		out.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args, "port", "8080", "delay", "0",
+				"deny", "", "distribution", "");
+		SyncStandInServer server = new SyncStandInServer(options.getInt("port"));
+		server.setDelay(options.getInt("delay"));
+		if (options.get("distribution").length() > 0)
+			server.setKeyDistribution(new KeyDistribution(options.get(
+					"distribution").getBytes("US-ASCII")));
+		for (String uid : options.get("deny").split(","))
+			if (uid.length() > 0) server.deny(Long.parseLong(uid, 16));
+		server.start();
+		System.out.println("Sync stand-in server listening on port "
+				+ server.getPort() + ".");
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println("Received " + server.getTapsReceived()
+					+ " taps in " + server.getBatchesReceived() + " batches.");
+		}
+	}
+
+}
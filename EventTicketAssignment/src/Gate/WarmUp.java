@@ -0,0 +1,165 @@
+package Gate;
+
+import java.io.PrintStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import Ticket.Ticket;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Warm-up stage for a gate process. Before the first rider taps, it loads
+ * the smart card and crypto classes, looks up the PC/SC terminal factory
+ * and runs synthetic format/issue/use cycles on an emulated card until the
+ * JIT compiler has settled, so that the first real tap does not pay for
+ * class loading, provider lookups and interpreted bytecode.
+ *
+ * The cycles stop when three windows of taps in a row caused no new JIT
+ * compilation (or, on JVMs without compilation time monitoring, when the
+ * median tap time stops improving) or when maxCycles is reached. Then one
+ * more tap on a fresh card is timed like a real rider's tap, and the
+ * report gives its time and how long after JVM start it was done.
+ */
+public class WarmUp {
+
+	// Classes that the first tap would otherwise load.
+	private static final String[] preloadClasses = { "javax.smartcardio.TerminalFactory",
+			"javax.smartcardio.CardTerminal", "javax.smartcardio.Card",
+			"javax.smartcardio.CardChannel", "javax.smartcardio.CommandAPDU",
+			"javax.smartcardio.ResponseAPDU", "javax.smartcardio.ATR",
+			"javax.smartcardio.CardException", "javax.crypto.Mac",
+			"javax.crypto.spec.SecretKeySpec", "java.nio.ByteBuffer",
+			"Ultralight.CardReader", "Ultralight.UltralightCommands",
+			"Ultralight.UltralightUtilities", "Ticket.Ticket",
+			"Ticket.TicketMac", "Ticket.ValidationResult" };
+
+	private static final int window = 200;
+	private static final int quietWindows = 3;
+
+	private final PrintStream msgOut;
+	private long firstTapNanos = 0;
+	private long steadyTapNanos = 0;
+	private long readyTapNanos = 0;
+	private long readyMillis = 0; // JVM uptime after the timed tap.
+	private int cycles = 0;
+	private long durationNanos = 0;
+
+	public WarmUp(PrintStream msgOut) {
+		this.msgOut = msgOut;
+	}
+
+	// Load classes and initialize the PC/SC and HMAC providers.
+	public void preload() {
+		for (String name : preloadClasses) {
+			try {
+				Class.forName(name);
+			} catch (ClassNotFoundException e) {
+				userMessage("Warm-up: class " + name + " not found.");
+			}
+		}
+		try {
+			// The first call loads and initializes the PC/SC provider.
+			javax.smartcardio.TerminalFactory.getDefault();
+			javax.crypto.Mac.getInstance("HmacSHA1");
+		} catch (Exception e) {
+			userMessage("Warm-up: provider initialization failed: " + e);
+		}
+	}
+
+	/**
+	 * Run synthetic cycles on an emulated card. Every tenth cycle formats and
+	 * issues a new ticket, the others use the current one.
+	 *
+	 * @param maxCycles
+	 *            Upper limit for the number of cycles.
+	 */
+	public void run(int maxCycles) throws Exception {
+		long start = System.nanoTime();
+		EmulatedTerminal terminal = new EmulatedTerminal("Warm-up");
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		terminal.insertCard(EmulatedTerminal.blankCard(0));
+		reader.initCard();
+		UltralightCommands ul = new UltralightCommands(reader);
+		ul.safe = false;
+		Ticket ticket = new Ticket(ul, null);
+
+		CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+		boolean timed = compiler != null
+				&& compiler.isCompilationTimeMonitoringSupported();
+		long compileTime = timed ? compiler.getTotalCompilationTime() : 0;
+		LatencyRecorder taps = new LatencyRecorder("warm-up");
+		long previousMedian = Long.MAX_VALUE;
+		int quiet = 0;
+		byte[] card = null;
+		int currentTime = (int) (System.currentTimeMillis() / 1000 / 60);
+
+		for (cycles = 0; cycles < maxCycles; cycles++) {
+			if (cycles % 10 == 0) {
+				card = EmulatedTerminal.blankCard(cycles);
+				terminal.insertCard(card);
+				ticket.format();
+				ticket.issue(currentTime + 24 * 60, 10);
+			}
+			terminal.insertCard(card.clone());
+			long tapStart = System.nanoTime();
+			ticket.use(currentTime);
+			long tap = System.nanoTime() - tapStart;
+			if (cycles == 0) firstTapNanos = tap;
+			taps.record(tap);
+
+			if (taps.getCount() == window) {
+				long median = taps.percentile(50);
+				taps.clear();
+				steadyTapNanos = median;
+				if (timed) {
+					long newCompileTime = compiler.getTotalCompilationTime();
+					quiet = newCompileTime == compileTime ? quiet + 1 : 0;
+					if (quiet == quietWindows) break;
+					compileTime = newCompileTime;
+				} else {
+					if (median * 20 > previousMedian * 19) break;
+					previousMedian = median;
+				}
+			}
+		}
+
+		// Time a tap as the first rider would see it: a card that the
+		// warm-up has not validated, connected like a new card.
+		card = EmulatedTerminal.blankCard(cycles);
+		terminal.insertCard(card);
+		ticket.format();
+		ticket.issue(currentTime + 24 * 60, 10);
+		terminal.insertCard(card.clone());
+		reader.initCard();
+		long tapStart = System.nanoTime();
+		if (!ticket.use(currentTime).isValid())
+			userMessage("Warm-up: the timed tap was not valid.");
+		readyTapNanos = System.nanoTime() - tapStart;
+		readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		durationNanos = System.nanoTime() - start;
+	}
+
+	public void report(PrintStream out) {
+		out.printf("Warm-up: %d cycles in %.1f ms, first tap %.3f ms, steady tap %.3f ms.%n",
+				cycles, durationNanos / 1e6, firstTapNanos / 1e6,
+				steadyTapNanos / 1e6);
+		out.printf("Tap after warm-up: %.3f ms, done %d ms after JVM start.%n",
+				readyTapNanos / 1e6, readyMillis);
+	}
+
+	private void userMessage(String msg) {
+		if (msgOut != null) msgOut.println(msg);
+	}
+
+	// Warm up once and report the tap times.
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args, "cycles", "20000");
+		WarmUp warmUp = new WarmUp(System.out);
+		warmUp.preload();
+		warmUp.run(options.getInt("cycles"));
+		warmUp.report(System.out);
+	}
+
+}
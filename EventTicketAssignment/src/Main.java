@@ -1,7 +1,13 @@
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import Ticket.*;
 import Ultralight.*;
 import java.io.Console;
+import java.io.IOException;
+import java.io.PrintStream;
 
 /**
  * @author Tuomas Aura
@@ -9,15 +15,79 @@ import java.io.Console;
  */
 public class Main {
 
+	// Commands and the parameters each of them takes.
+	private static final String[][] commands = { { "dump" }, { "erase" },
+			{ "format" }, { "issue", "days", "uses", "product" }, { "use" },
+			{ "peek" }, { "lock" }, { "reissue", "days", "uses" } };
+
+	// Memory dumps are printed as a table among the user messages unless
+	// another format is given with -Dticket.dump=json or -Dticket.dump=csv.
+	// JSON and CSV dumps are written alone to System.out for batch tools,
+	// and the user messages then go to System.err.
+	private static MemoryDumpFormatter.Format dumpFormat;
+	private static final MemoryDumpFormatter dumpFormatter = new MemoryDumpFormatter();
+	private static PrintStream messages = System.out;
+	private static boolean dumped = false;
+
 	public static void main(String[] args) throws Exception {
 		boolean status;
 
 		Console c = System.console();
+
+		String format = System.getProperty("ticket.dump", "table");
+		try {
+			dumpFormat = MemoryDumpFormatter.Format.valueOf(format.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown memory dump format: " + format);
+			System.out.println("Use -Dticket.dump=table|json|csv.");
+			return;
+		}
+		if (dumpFormat != MemoryDumpFormatter.Format.TABLE)
+			messages = System.err;
+
+		// The arguments are one command, or a script of commands separated
+		// by semicolons, each with optional key=value parameters, e.g.
+		//   "erase; format; issue days=30 uses=10; lock"
+		// All commands of a script run on the same card connection.
+		List<String> steps = new ArrayList<String>();
+		List<Map<String, String>> parameters = new ArrayList<Map<String, String>>();
+		StringBuilder script = new StringBuilder();
+		for (String arg : args)
+			script.append(arg).append(' ');
+		for (String step : script.toString().split(";")) {
+			String[] words = step.trim().split("\\s+");
+			if (words[0].length() == 0) continue;
+			Map<String, String> stepParameters = parseStep(words);
+			if (stepParameters == null) return;
+			steps.add(words[0]);
+			parameters.add(stepParameters);
+		}
+
+		if (steps.isEmpty()) {
+			messages.println("You did not specify what to do.");
+			messages.println("Use command-line argument: dump|erase|format|issue|use|peek|lock|reissue");
+			messages.println("or a script such as \"format; issue days=30 uses=10; lock\".");
+			messages.println("\nTypically, first format the card, then issue tickets, and finally use them.");
+			messages.println("Erase works only in the safe mode. In real life, used cards cannot be erased.");
+			messages.println();
+			System.exit(0);
+		}
+
+		// (Step 0) Optionally warm up the validation path before the first
+		// real tap, with -Dticket.warmup=true. See Gate.WarmUp.
+		if (Boolean.getBoolean("ticket.warmup")) {
+			Gate.WarmUp warmUp = new Gate.WarmUp(messages);
+			warmUp.preload();
+			warmUp.run(20000);
+			warmUp.report(messages);
+		}
+
 		// (Step 1) Create a reader object.
 		// Since this is a command line main program, we print informative
-		// user messages System.out. The second argument can be set to
-		// System.out if you also want to print the APDU hex data.
-		CardReader reader = new CardReader(System.out, null);
+		// user messages to System.out, or to System.err with a JSON or CSV
+		// memory dump. The second argument can be set to System.out if you
+		// also want to print the APDU hex data.
+		CardReader reader = new CardReader(messages, null);
 
 		// (Step 2) Initialize the smart card reader and card.
 		// If there many readers, it tries to select the right one
@@ -32,154 +102,326 @@ public class Main {
 		UltralightCommands ul = new UltralightCommands(reader);
 		//ul.safe = false;
 		if (ul.safe)
-			System.out.println("You are currently working in safe mode (practice mode).");
+			messages.println("You are currently working in safe mode (practice mode).");
 		else
-			System.out.println("You are currently working in UNSAFE mode. It may not be possible to erase or reuse the card after this.");
+			messages.println("You are currently working in UNSAFE mode. It may not be possible to erase or reuse the card after this.");
+		// Only this program uses the card, so each page needs to be read
+		// only once for all the commands.
+		ul.setCaching(true);
 
 		// (Step 4) Finally, read and write data.
 
-		UltralightUtilities utils = new UltralightUtilities(ul, System.out);
-		utils.printMemory(System.out);
+		UltralightUtilities utils = new UltralightUtilities(ul, messages);
+		printMemory(utils.readMemory());
 
-		Ticket ticket = new Ticket(ul, System.out);
+		Ticket ticket = new Ticket(ul, messages);
 
-		if (args.length == 0) {
-			System.out.println("You did not specify what to do.");
-			System.out.println("Use command-line argument: dump|erase|format|issue|use");
-			System.out.println("\nTypically, first format the card, then issue tickets, and finally use them.");
-			System.out.println("Erase works only in the safe mode. In real life, used cards cannot be erased.");
-			System.out.println();
-			System.exit(0);
+		// Product rules for use and peek can be given with
+		// -Dticket.rules=<file>, and the zone of this reader with
+		// -Dticket.zone=<zone>. See Ticket.FareRules for the file format.
+		// A changed file is loaded again before each step.
+		String rulesFile = System.getProperty("ticket.rules");
+		FareRules rules = null;
+		if (rulesFile != null) {
+			rules = new FareRules();
+			rules.load(new java.io.File(rulesFile));
+			try {
+				ticket.setFareRules(rules, Integer.getInteger("ticket.zone", -1));
+			} catch (IllegalArgumentException e) {
+				messages.println(e.getMessage());
+				return;
+			}
 		}
 
-		else if (args[0].equals("dump"))
-			System.exit(0);
+		// MAC keys for key rotation can be given with -Dticket.keys=<file>.
+		// Used tickets are then moved to the current key. See Ticket.KeyRing.
+		String keysFile = System.getProperty("ticket.keys");
+		if (keysFile != null) {
+			KeyRing keyRing = new KeyRing();
+			keyRing.load(new java.io.File(keysFile));
+			ticket.setKeyRing(keyRing, true);
+		}
+
+		// Run the commands. The memory is printed again by a dump command
+		// and at the end, if a command may have changed it.
+		boolean changed = false;
+		for (int i = 0; i < steps.size(); i++) {
+			String step = steps.get(i);
+			if (rules != null)
+				try {
+					if (rules.reloadIfModified())
+						messages.println("Reloaded the product rules from "
+								+ rulesFile + ".");
+				} catch (IOException e) {
+					messages.println("Keeping the old product rules: "
+							+ e.getMessage());
+				}
+			long start = System.nanoTime();
+			if (step.equals("dump")) {
+				if (changed) {
+					ul.invalidateCache();
+					printMemory(utils.readMemory());
+				}
+				changed = false;
+				status = true;
+			} else {
+				status = runCommand(step, parameters.get(i), ticket, ul, utils, c);
+				changed |= !step.equals("peek");
+			}
+			if (steps.size() > 1)
+				messages.printf("Step %d (%s) took %.1f ms.%n", i + 1, step,
+						(System.nanoTime() - start) / 1e6);
+			if (!status && i < steps.size() - 1) {
+				messages.println("Stopping the script after a failed step.");
+				break;
+			}
+		}
+
+		// The snapshot and the dump show the card, not the cache.
+		ul.invalidateCache();
+		byte[] memory = utils.readMemory();
+		// Keep a snapshot of the card after each operation if a store
+		// directory is given with -Dticket.store=<directory>.
+		String storeDirectory = System.getProperty("ticket.store");
+		if (storeDirectory != null) {
+			try {
+				CardImageStore store = new CardImageStore(new java.io.File(storeDirectory));
+				store.append(memory, System.currentTimeMillis());
+				store.close();
+			} catch (java.io.IOException e) {
+				messages.println("Could not store the card snapshot: " + e.getMessage());
+			}
+		}
+		if (changed)
+			printMemory(memory);
+	}
+
+	// Print a memory dump in the chosen format. A CSV dump starts with the
+	// column names.
+	private static void printMemory(byte[] memory) throws IOException {
+		PrintStream out = dumpFormat == MemoryDumpFormatter.Format.TABLE ? messages
+				: System.out;
+		if (!dumped && dumpFormat == MemoryDumpFormatter.Format.CSV)
+			dumpFormatter.writeCsvHeader(out);
+		dumped = true;
+		dumpFormatter.write(out, memory, dumpFormat);
+		out.flush();
+	}
+
+	// Check a command and its key=value parameters. Returns the parameters,
+	// or null after printing an error.
+	private static Map<String, String> parseStep(String[] words) {
+		String[] command = null;
+		for (String[] candidate : commands)
+			if (candidate[0].equals(words[0])) command = candidate;
+		if (command == null) {
+			messages.println("Unknown function: " + words[0]);
+			return null;
+		}
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (int i = 1; i < words.length; i++) {
+			int eq = words[i].indexOf('=');
+			String key = eq < 0 ? words[i] : words[i].substring(0, eq);
+			boolean known = false;
+			for (int j = 1; j < command.length; j++)
+				if (command[j].equals(key)) known = true;
+			if (eq < 0 || !known) {
+				messages.println("Unknown parameter for " + words[0] + ": " + words[i]);
+				return null;
+			}
+			parameters.put(key, words[i].substring(eq + 1));
+		}
+		return parameters;
+	}
 
-		else if (args[0].equals("erase")) {
+	// Number parameter, or the default if it was not given. Returns null if
+	// it is not a number.
+	private static Integer getNumber(Map<String, String> parameters,
+			String key, Integer defaultValue) {
+		String value = parameters.get(key);
+		if (value == null) return defaultValue;
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			messages.println("Could not parse " + key + "=" + value);
+			return null;
+		}
+	}
+
+	// Run one command other than dump. Returns true if it succeeded.
+	private static boolean runCommand(String command,
+			Map<String, String> parameters, Ticket ticket,
+			UltralightCommands ul, UltralightUtilities utils, Console c)
+			throws Exception {
+		boolean status;
+
+		if (command.equals("erase")) {
 			boolean isSafe = ul.safe;
 			if (isSafe) {
-				System.out.println("Turning safe mode off.");
+				messages.println("Turning safe mode off.");
 				ul.safe = false;
 			}
-			System.out.println("Erasing whatever can still be erased...");
+			messages.println("Erasing whatever can still be erased...");
 			status = utils.eraseMemory();
 			if (isSafe) {
-				System.out.println("Turning safe mode back on.");
+				messages.println("Turning safe mode back on.");
 				ul.safe = true;
 			}
 			if (status)
-				System.out.println("Erasing completed (except maybe any OTP and lock bits that cannot be reset).");
+				messages.println("Erasing completed (except maybe any OTP and lock bits that cannot be reset).");
 			else
-				System.out.println("Erasing FAILED.");
+				messages.println("Erasing FAILED.");
+			return status;
 		}
 
-		else if (args[0].equals("format")) {
-			System.out.println("Formating the card to be used as ticket...");
+		else if (command.equals("format")) {
+			messages.println("Formating the card to be used as ticket...");
 
 			// You need to implement this method:
 			status = ticket.format();
 
 			if (status)
-				System.out.println("Formating completed.");
+				messages.println("Formating completed.");
 			else
-				System.out.println("Formating FAILED.");
+				messages.println("Formating FAILED.");
+			return status;
 		}
 
-		else if (args[0].equals("issue")) {
-			int days = 30;
-			int uses = 10;
-			System.out.println("Issuing new ticket for " + days + "days, "
+		else if (command.equals("issue")) {
+			Integer days = getNumber(parameters, "days", 30);
+			Integer uses = getNumber(parameters, "uses", 10);
+			// Product id for FareRules, product=<0..255> or
+			// -Dticket.product=<0..255>.
+			Integer product = getNumber(parameters, "product",
+					Integer.getInteger("ticket.product", 0));
+			if (days == null || uses == null || product == null) return false;
+			messages.println("Issuing new ticket for " + days + "days, "
 					+ uses + " uses...");
 			// Time expressed as MINUTES since January 1, 1970.
 			int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
 			int expiryTime = currentTime + days * 24 * 60;
-			System.out.println("Current time: "
+			messages.println("Current time: "
 					+ new Date((long) currentTime * 60 * 1000));
-			System.out.println("Expiry time: "
+			messages.println("Expiry time: "
 					+ new Date((long) expiryTime * 60 * 1000));
-			System.out.println("Remaining uses: " + uses);
+			messages.println("Remaining uses: " + uses);
+			messages.println("Product: " + product);
 
 			// You need to implement this method:
-			status = ticket.issue(expiryTime, uses);
+			status = ticket.issue(expiryTime, uses, product);
 
 			if (status)
-				System.out.println("Ticket issuing completed.");
+				messages.println("Ticket issuing completed.");
 			else
-				System.out.println("Ticket issuing FAILED. Probably you did not format the card correctly.");
+				messages.println("Ticket issuing FAILED. Probably you did not format the card correctly.");
+			return status;
 		}
 
-		else if (args[0].equals("use")) {
-			System.out.println("Using ticket...");
+		else if (command.equals("use")) {
+			messages.println("Using ticket...");
 			// Time expressed as MINUTES since January 1, 1970.
 			int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
 
-			// You need to implement these methods:
-			ticket.use(currentTime);
-			boolean valid = ticket.isValid();
-			int uses = ticket.getRemainingUses();
-			int expiryTime = ticket.getExpiryTime();
+			ValidationResult result = ticket.use(currentTime);
+			int uses = result.getRemainingUses();
+			int expiryTime = result.getExpiryTime();
 
-			if (valid)
-				System.out.println("Used ticket successfully. The ticket was valid.");
-			else
-				System.out
+			if (result.isValid())
+				messages.println("Used ticket successfully. The ticket was valid.");
+			else {
+				messages.println("ERROR: " + result.getReason().getMessage());
+				messages
 						.println("Ticket use FAILED. The following data may be INVALID.");
+			}
+
+			messages.println("Current time: "
+					+ new Date((long) currentTime * 60 * 1000));
+			messages.println("Expiry time: "
+					+ new Date((long) expiryTime * 60 * 1000));
+			messages.println("Remaining uses: " + uses);
+			return result.isValid();
+		}
+
+		else if (command.equals("peek")) {
+			messages.println("Checking ticket without using it...");
+			// Time expressed as MINUTES since January 1, 1970.
+			int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
+
+			ValidationResult result = ticket.peek(currentTime);
+			int uses = result.getRemainingUses();
+			int expiryTime = result.getExpiryTime();
+
+			if (result.isValid())
+				messages.println("The ticket is valid.");
+			else {
+				messages.println("ERROR: " + result.getReason().getMessage());
+				messages.println("The ticket is NOT valid. The following data may be INVALID.");
+			}
 
-			System.out.println("Current time: "
+			messages.println("Current time: "
 					+ new Date((long) currentTime * 60 * 1000));
-			System.out.println("Expiry time: "
+			messages.println("Expiry time: "
 					+ new Date((long) expiryTime * 60 * 1000));
-			System.out.println("Remaining uses: " + uses);
-		}
-		
-		else if (args[0].equals("lock")) {
-			System.out.println("Locking a ticket (all pages)");
-			ticket.lock();
-		}
-		
-		else if (args[0].equals("reissue")) {
-			System.out.println("Reissuing a ticket (overwriting an already formatted ticket unless it is locked)");
-			System.out.print("Validity in days: ");
-			String input1 = c.readLine();
-			System.out.print("Number of uses: ");
-			String input2 = c.readLine();
-			
+			messages.println("Remaining uses: " + uses);
+			return result.isValid();
+		}
+
+		else if (command.equals("lock")) {
+			messages.println("Locking a ticket (all pages)");
+			return ticket.lock();
+		}
+
+		else if (command.equals("reissue")) {
+			messages.println("Reissuing a ticket (overwriting an already formatted ticket unless it is locked)");
+			// Ask for the values that were not given as parameters.
+			String input1 = parameters.get("days");
+			String input2 = parameters.get("uses");
+			if ((input1 == null || input2 == null) && c == null) {
+				messages.println("Give days=<days> and uses=<uses> without a console.");
+				return false;
+			}
+			if (input1 == null) {
+				messages.print("Validity in days: ");
+				input1 = c.readLine();
+			}
+			if (input2 == null) {
+				messages.print("Number of uses: ");
+				input2 = c.readLine();
+			}
+
 			int days;
 			int uses;
 			try {
 				days = Integer.parseInt(input1);
 				uses = Integer.parseInt(input2);
 			} catch(NumberFormatException e) {
-				System.out.println("Could not parse inputted numbers");
-				return;
+				messages.println("Could not parse inputted numbers");
+				return false;
 			}
-			
-			System.out.println("Issuing new ticket for " + days + "days, "
+
+			messages.println("Issuing new ticket for " + days + "days, "
 					+ uses + " uses...");
 			// Time expressed as MINUTES since January 1, 1970.
 			int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
 			int expiryTime = currentTime + days * 24 * 60;
-			System.out.println("Current time: "
+			messages.println("Current time: "
 					+ new Date((long) currentTime * 60 * 1000));
-			System.out.println("Expiry time: "
+			messages.println("Expiry time: "
 					+ new Date((long) expiryTime * 60 * 1000));
-			
-			status = ticket.reissue(expiryTime, uses);
-			System.out.println("Remaining uses: " + ticket.getRemainingUses());
-			
-			
-			if (status)
-				System.out.println("Ticket issuing completed.");
-			else
-				System.out.println("Ticket issuing FAILED. Probably you did not format the card correctly.");
-			
-		}
-		
-		else {
-			System.out.println("Unknown function: " + args[0]);
+
+			ValidationResult result = ticket.reissue(expiryTime, uses);
+
+			if (result.isValid()) {
+				messages.println("Remaining uses: " + result.getRemainingUses());
+				messages.println("Ticket issuing completed.");
+			} else {
+				messages.println("ERROR: " + result.getReason().getMessage());
+				messages.println("Ticket issuing FAILED. Probably you did not format the card correctly.");
+			}
+			return result.isValid();
 		}
 
-		utils.printMemory(System.out);
+		return false;
 	}
 
 }
@@ -0,0 +1,57 @@
+package Ticket;
+
+import java.util.Arrays;
+
+/**
+ * Set of card UIDs that must be rejected even if the ticket is otherwise
+ * valid, e.g. reported stolen or refunded cards. Lookups read a sorted
+ * array without locking; updates build a new array and swap it in, so
+ * Ticket.use() never waits for an update.
+ */
+public class Denylist {
+
+	private volatile long[] uids = new long[0];
+	private volatile long version = 0;
+
+	public boolean contains(long uid) {
+		return Arrays.binarySearch(uids, uid) >= 0;
+	}
+
+	public int size() {
+		return uids.length;
+	}
+
+	// Version of the last applied update, 0 if none.
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Apply an incremental update.
+	 * 
+	 * @param added
+	 *            UIDs to deny.
+	 * @param removed
+	 *            UIDs to allow again.
+	 * @param newVersion
+	 *            Version of the list after this update.
+	 */
+	public synchronized void update(long[] added, long[] removed,
+			long newVersion) {
+		long[] current = uids;
+		long[] next = Arrays.copyOf(current, current.length + added.length);
+		System.arraycopy(added, 0, next, current.length, added.length);
+		Arrays.sort(next);
+		long[] sortedRemoved = removed.clone();
+		Arrays.sort(sortedRemoved);
+		// Drop duplicates and removed UIDs.
+		int n = 0;
+		for (int i = 0; i < next.length; i++)
+			if ((n == 0 || next[n - 1] != next[i])
+					&& Arrays.binarySearch(sortedRemoved, next[i]) < 0)
+				next[n++] = next[i];
+		uids = Arrays.copyOf(next, n);
+		version = newVersion;
+	}
+
+}
@@ -0,0 +1,248 @@
+package Ticket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Time-of-day, weekday and zone rules per ticket product. A rule file is
+ * compiled into one bit per minute of the week and a zone bit mask for each
+ * product, so checking a tap takes a few array lookups. Loading a new file
+ * builds new tables and swaps them in with one write, so validations never
+ * wait for a reload and never see half of a rule set.
+ *
+ * Rule file:
+ *   # comment
+ *   utcoffset 120              local time in minutes east of UTC (default 0)
+ *   product 1                  the following lines apply to product 1
+ *   zones 1-3,5                zones where it is valid (default all)
+ *   allow mon-fri 09:30-16:00  valid at these times
+ *   deny sat                   except at these times
+ *
+ * Days are mon..sun, ranges may wrap (fri-mon), and a time range may cross
+ * midnight (22:00-04:00 ends on the next day). Without a time the rule
+ * covers the whole day. allow and deny lines are applied in order to a
+ * product that starts valid at no time; a product without time rules is
+ * valid at all times. Products that are not in the file, such as tickets
+ * issued without a product, are not restricted.
+ *
+ * The UTC offset is fixed, so a new rule file must be loaded when daylight
+ * saving time starts or ends.
+ */
+public class FareRules {
+
+	public static final int PRODUCTS = 256; // Product id is one byte on the card.
+	public static final int ZONES = 64;
+
+	private static final int MINUTES_PER_WEEK = 7 * 24 * 60;
+	// January 1, 1970 was a Thursday; minute 0 of the week is Monday 00:00.
+	private static final int EPOCH_MINUTE_OF_WEEK = 3 * 24 * 60;
+	private static final String[] dayNames = { "mon", "tue", "wed", "thu",
+			"fri", "sat", "sun" };
+
+	// Compiled rule set. Never modified after it has been published.
+	private static class Tables {
+		final int utcOffset;
+		final long[][] minutes; // Per product, null if unrestricted.
+		final long[] zones; // Per product.
+
+		Tables(int utcOffset, long[][] minutes, long[] zones) {
+			this.utcOffset = utcOffset;
+			this.minutes = minutes;
+			this.zones = zones;
+		}
+	}
+
+	private volatile Tables tables;
+	private File file = null;
+	private long lastModified = 0;
+
+	// No restrictions until a rule file is loaded.
+	public FareRules() {
+		long[] zones = new long[PRODUCTS];
+		Arrays.fill(zones, -1L);
+		tables = new Tables(0, new long[PRODUCTS][], zones);
+	}
+
+	/**
+	 * Check a tap against the rules.
+	 *
+	 * @param product
+	 *            Product id from the ticket, 0..255.
+	 * @param zone
+	 *            Zone of the gate, 0..63, or -1 to skip the zone check. No
+	 *            product is valid in other zones.
+	 * @param currentTime
+	 *            Time in minutes since January 1, 1970 (UTC).
+	 * @return VALID, WRONG_ZONE or NOT_VALID_NOW.
+	 */
+	public ValidationResult.Reason check(int product, int zone, int currentTime) {
+		Tables t = tables;
+		// The shift count of 1L << zone is taken modulo 64.
+		if (zone >= 0
+				&& (zone >= ZONES || (t.zones[product] & (1L << zone)) == 0))
+			return ValidationResult.Reason.WRONG_ZONE;
+		long[] minutes = t.minutes[product];
+		if (minutes != null) {
+			int minute = (currentTime + t.utcOffset + EPOCH_MINUTE_OF_WEEK)
+					% MINUTES_PER_WEEK;
+			if (minute < 0) minute += MINUTES_PER_WEEK;
+			if ((minutes[minute >>> 6] & (1L << minute)) == 0)
+				return ValidationResult.Reason.NOT_VALID_NOW;
+		}
+		return ValidationResult.Reason.VALID;
+	}
+
+	/**
+	 * Compile a rule file and replace the current rules with it. If the
+	 * file has an error, the current rules stay in force.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read or has a syntax error.
+	 */
+	public synchronized void load(File file) throws IOException {
+		long modified = file.lastModified();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			tables = compile(in, file.getName());
+		} finally {
+			in.close();
+		}
+		this.file = file;
+		this.lastModified = modified;
+	}
+
+	// Load the last loaded file again if it has changed since. Cheap enough
+	// to call before each tap, as Main does before each step.
+	public synchronized boolean reloadIfModified() throws IOException {
+		if (file == null || file.lastModified() == lastModified) return false;
+		load(file);
+		return true;
+	}
+
+	private static Tables compile(BufferedReader in, String source)
+			throws IOException {
+		int utcOffset = 0;
+		long[][] minutes = new long[PRODUCTS][];
+		long[] zones = new long[PRODUCTS];
+		Arrays.fill(zones, -1L);
+		int product = -1;
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int hash = line.indexOf('#');
+			if (hash >= 0) line = line.substring(0, hash);
+			String[] words = line.trim().split("\\s+");
+			if (words[0].length() == 0) continue;
+			try {
+				if (words[0].equals("utcoffset") && words.length == 2)
+					utcOffset = Integer.parseInt(words[1].replace("+", ""));
+				else if (words[0].equals("product") && words.length == 2) {
+					product = Integer.parseInt(words[1]);
+					if (product < 0 || product >= PRODUCTS)
+						throw new IllegalArgumentException("bad product");
+				} else if (product < 0)
+					throw new IllegalArgumentException("no product");
+				else if (words[0].equals("zones") && words.length == 2)
+					zones[product] = parseZones(words[1]);
+				else if ((words[0].equals("allow") || words[0].equals("deny"))
+						&& (words.length == 2 || words.length == 3)) {
+					if (minutes[product] == null)
+						minutes[product] = new long[MINUTES_PER_WEEK / 64 + 1];
+					setMinutes(minutes[product], words[1],
+							words.length == 3 ? words[2] : "00:00-24:00",
+							words[0].equals("allow"));
+				} else
+					throw new IllegalArgumentException("unknown rule");
+			} catch (IllegalArgumentException e) {
+				throw new IOException(source + ":" + lineNumber + ": "
+						+ e.getMessage() + ": " + line.trim());
+			}
+		}
+		return new Tables(utcOffset, minutes, zones);
+	}
+
+	// "1-3,5" to a bit mask.
+	private static long parseZones(String spec) {
+		long mask = 0;
+		for (String part : spec.split(",")) {
+			String[] range = part.split("-");
+			int from = Integer.parseInt(range[0]);
+			int to = range.length == 2 ? Integer.parseInt(range[1]) : from;
+			if (range.length > 2 || from < 0 || to >= ZONES || from > to)
+				throw new IllegalArgumentException("bad zones");
+			for (int z = from; z <= to; z++)
+				mask |= 1L << z;
+		}
+		return mask;
+	}
+
+	// Set or clear the bits of the given days ("mon-fri", "sat") and time
+	// range ("09:30-16:00").
+	private static void setMinutes(long[] bits, String days, String times,
+			boolean allow) {
+		String[] dayRange = days.split("-");
+		int firstDay = parseDay(dayRange[0]);
+		int lastDay = dayRange.length == 2 ? parseDay(dayRange[1]) : firstDay;
+		String[] timeRange = times.split("-");
+		if (dayRange.length > 2 || timeRange.length != 2)
+			throw new IllegalArgumentException("bad range");
+		int start = parseTime(timeRange[0]);
+		int end = parseTime(timeRange[1]);
+		int length = end > start ? end - start : end + 24 * 60 - start;
+		for (int day = firstDay;; day = (day + 1) % 7) {
+			for (int i = 0; i < length; i++) {
+				int minute = (day * 24 * 60 + start + i) % MINUTES_PER_WEEK;
+				if (allow)
+					bits[minute >>> 6] |= 1L << minute;
+				else
+					bits[minute >>> 6] &= ~(1L << minute);
+			}
+			if (day == lastDay) break;
+		}
+	}
+
+	private static int parseDay(String name) {
+		for (int i = 0; i < 7; i++)
+			if (dayNames[i].equals(name)) return i;
+		throw new IllegalArgumentException("bad day");
+	}
+
+	// "HH:MM" to minutes since midnight, 00:00..24:00.
+	private static int parseTime(String time) {
+		String[] parts = time.split(":");
+		if (parts.length != 2) throw new IllegalArgumentException("bad time");
+		int minutes = Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+		if (minutes < 0 || minutes > 24 * 60)
+			throw new IllegalArgumentException("bad time");
+		return minutes;
+	}
+
+	// Compile a rule file and check a product and zone at a given time, e.g.
+	//   FareRules rules.txt 1 2 2026-10-19T08:15
+	// with the time in UTC.
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			System.out.println("Usage: FareRules <file> <product> <zone> <yyyy-MM-ddTHH:mm>");
+			return;
+		}
+		FareRules rules = new FareRules();
+		rules.load(new File(args[0]));
+		java.text.SimpleDateFormat format = new java.text.SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm");
+		format.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+		int time = (int) (format.parse(args[3]).getTime() / 1000 / 60);
+		int zone = Integer.parseInt(args[2]);
+		if (zone < -1 || zone >= ZONES) {
+			System.out.println("Zone must be -1.." + (ZONES - 1) + ".");
+			return;
+		}
+		System.out.println(rules.check(Integer.parseInt(args[1]), zone, time));
+	}
+
+}
@@ -0,0 +1,140 @@
+package Ticket;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Protection of updates sent to the gates over an untrusted channel, such
+ * as the plain HTTP sync of Gate.SyncClient. Every gate and the back
+ * office are provisioned with the same distribution key. An AES key for
+ * encrypting the ticket keys and an HMAC-SHA256 key for authenticating the
+ * lines are derived from it.
+ *
+ * Lines:
+ *   key <id> <IV and AES-CBC encrypted key in hex> <MAC in hex>
+ *   current <id> <MAC in hex>
+ * Other lines, such as denylist changes, are authenticated the same way
+ * with authenticate() and checked with verify().
+ *
+ * The MAC covers the version of the update and the line without the MAC,
+ * so a line cannot be replayed as a different update, and a ticket key is
+ * never sent in the clear. A gate must apply only lines that pass apply()
+ * or verify().
+ */
+public class KeyDistribution {
+
+	private static final Charset ascii = Charset.forName("US-ASCII");
+	private static final int IV_LENGTH = 16;
+
+	private final SecretKeySpec encryptionKey;
+	private final SecretKeySpec macKey;
+	private final SecureRandom random = new SecureRandom();
+
+	public KeyDistribution(byte[] distributionKey)
+			throws GeneralSecurityException {
+		if (distributionKey.length < 16)
+			throw new IllegalArgumentException(
+					"The distribution key must be at least 16 bytes.");
+		Mac derive = Mac.getInstance("HmacSHA256");
+		derive.init(new SecretKeySpec(distributionKey, "HmacSHA256"));
+		encryptionKey = new SecretKeySpec(Arrays.copyOf(
+				derive.doFinal("encrypt".getBytes(ascii)), 16), "AES");
+		macKey = new SecretKeySpec(derive.doFinal("authenticate"
+				.getBytes(ascii)), "HmacSHA256");
+	}
+
+	// Line that adds a key, for update version.
+	public String keyLine(long version, int keyId, byte[] key)
+			throws GeneralSecurityException {
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+		byte[] encrypted = cipher.doFinal(key);
+		byte[] wrapped = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+		System.arraycopy(encrypted, 0, wrapped, IV_LENGTH, encrypted.length);
+		return authenticate(version, "key " + keyId + " "
+				+ KeyRing.toHex(wrapped));
+	}
+
+	// Line that makes a key current, for update version.
+	public String currentLine(long version, int keyId)
+			throws GeneralSecurityException {
+		return authenticate(version, "current " + keyId);
+	}
+
+	/**
+	 * Check one line of update version and apply it to the key ring.
+	 *
+	 * @throws GeneralSecurityException
+	 *             If the MAC does not match. Nothing is applied.
+	 * @throws IllegalArgumentException
+	 *             If the line is malformed or names an unknown key.
+	 */
+	public void apply(KeyRing keyRing, long version, String line)
+			throws GeneralSecurityException {
+		String[] words = line.trim().split("\\s+");
+		boolean key = words[0].equals("key") && words.length == 4;
+		boolean current = words[0].equals("current") && words.length == 3;
+		if (!key && !current)
+			throw new IllegalArgumentException("Bad key line: " + line);
+		verify(version, line);
+
+		int keyId = Integer.parseInt(words[1]);
+		if (current) {
+			keyRing.setCurrentKey(keyId);
+			return;
+		}
+		byte[] wrapped = KeyRing.parseHex(words[2]);
+		if (wrapped.length <= IV_LENGTH)
+			throw new IllegalArgumentException("Bad key line: " + line);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(
+				wrapped, 0, IV_LENGTH));
+		keyRing.addKey(keyId, cipher.doFinal(wrapped, IV_LENGTH, wrapped.length
+				- IV_LENGTH));
+	}
+
+	// Line with its MAC for update version appended.
+	public String authenticate(long version, String line)
+			throws GeneralSecurityException {
+		return line + " " + KeyRing.toHex(mac(version, line));
+	}
+
+	/**
+	 * Check the MAC of one line of update version.
+	 *
+	 * @return Returns the line without the MAC.
+	 * @throws GeneralSecurityException
+	 *             If the MAC does not match.
+	 * @throws IllegalArgumentException
+	 *             If the line has no MAC.
+	 */
+	public String verify(long version, String line)
+			throws GeneralSecurityException {
+		String signed = line.trim();
+		int space = signed.lastIndexOf(' ');
+		if (space < 0) throw new IllegalArgumentException("Bad line: " + line);
+		String mac = signed.substring(space + 1);
+		signed = signed.substring(0, space).trim();
+		if (!MessageDigest.isEqual(mac(version, signed), KeyRing.parseHex(mac)))
+			throw new GeneralSecurityException("Update " + version
+					+ " is not authentic: " + signed);
+		return signed;
+	}
+
+	private byte[] mac(long version, String line)
+			throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(macKey);
+		return mac.doFinal((version + " " + line).getBytes(ascii));
+	}
+
+}
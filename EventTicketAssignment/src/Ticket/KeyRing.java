@@ -0,0 +1,184 @@
+package Ticket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+
+/**
+ * MAC keys by key id, for rotating keys without re-issuing all cards at
+ * once. The key id of a ticket is the low 7 bits of the second byte of
+ * page 6. Id 0 is the built-in TicketMac key, so cards issued before key
+ * rotation keep working. New tickets are issued with the current key, and
+ * Ticket.use() can move a card to the current key during a normal tap.
+ *
+ * Each key has its own initialized TicketMac. Changes build a new set of
+ * keys and swap it in with one write, so validations never wait for a key
+ * update, and getCurrentKey() returns an id and MAC that belong together.
+ * A key id must not be reused for a different key while cards with it are
+ * in use.
+ *
+ * Keys are given as lines in a file:
+ *   key <id> <key in hex>
+ *   current <id>
+ * The file is trusted as it is. Updates over the network must be
+ * authenticated and encrypted, see KeyDistribution.
+ */
+public class KeyRing {
+
+	public static final int KEYS = 128; // Key id is 7 bits on the card.
+
+	/**
+	 * A key id and its MAC.
+	 */
+	public static final class Key {
+		private final int id;
+		private final TicketMac mac;
+
+		Key(int id, TicketMac mac) {
+			this.id = id;
+			this.mac = mac;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public TicketMac getMac() {
+			return mac;
+		}
+	}
+
+	// The keys and the current key. Never modified after it has been
+	// published.
+	private static class Keys {
+		final TicketMac[] macs;
+		final Key current;
+
+		Keys(TicketMac[] macs, int currentKeyId) {
+			this.macs = macs;
+			this.current = new Key(currentKeyId, macs[currentKeyId]);
+		}
+	}
+
+	private volatile Keys keys;
+
+	public KeyRing() throws GeneralSecurityException {
+		TicketMac[] macs = new TicketMac[KEYS];
+		macs[0] = new TicketMac();
+		keys = new Keys(macs, 0);
+	}
+
+	private KeyRing(Keys keys) {
+		this.keys = keys;
+	}
+
+	// MAC for the key id, or null if the key is not known.
+	public TicketMac getMac(int keyId) {
+		return keys.macs[keyId];
+	}
+
+	// Key id for new tickets and re-MACed cards.
+	public int getCurrentKeyId() {
+		return keys.current.id;
+	}
+
+	// Key for new tickets and re-MACed cards, with its MAC.
+	public Key getCurrentKey() {
+		return keys.current;
+	}
+
+	// A key ring with the same keys, each with its own TicketMac. Later
+	// changes are not copied.
+	public KeyRing copy() throws GeneralSecurityException {
+		Keys k = keys;
+		TicketMac[] macs = new TicketMac[KEYS];
+		for (int i = 0; i < KEYS; i++)
+			if (k.macs[i] != null) macs[i] = k.macs[i].copy();
+		return new KeyRing(new Keys(macs, k.current.id));
+	}
+
+	// Take over the keys of another ring in one write, e.g. of a copy()
+	// that a batch of updates was applied to. Changes made to this ring
+	// after the copy are lost.
+	public synchronized void set(KeyRing other) {
+		keys = other.keys;
+	}
+
+	public synchronized void addKey(int keyId, byte[] key)
+			throws GeneralSecurityException {
+		if (keyId <= 0 || keyId >= KEYS)
+			throw new IllegalArgumentException("Key id must be 1.."
+					+ (KEYS - 1) + ".");
+		TicketMac[] next = keys.macs.clone();
+		next[keyId] = new TicketMac(key);
+		keys = new Keys(next, keys.current.id);
+	}
+
+	// Retire a key. Cards that still have it are rejected.
+	public synchronized void removeKey(int keyId) {
+		if (keyId <= 0 || keyId >= KEYS || keyId == keys.current.id)
+			throw new IllegalArgumentException("Cannot remove key " + keyId + ".");
+		TicketMac[] next = keys.macs.clone();
+		next[keyId] = null;
+		keys = new Keys(next, keys.current.id);
+	}
+
+	// Every gate should know a key before any issuer makes it current.
+	public synchronized void setCurrentKey(int keyId) {
+		if (keyId < 0 || keyId >= KEYS || keys.macs[keyId] == null)
+			throw new IllegalArgumentException("Unknown key " + keyId + ".");
+		keys = new Keys(keys.macs, keyId);
+	}
+
+	/**
+	 * Apply one "key" or "current" line.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the line is malformed or names an unknown key.
+	 */
+	public void apply(String line) throws GeneralSecurityException {
+		String[] words = line.trim().split("\\s+");
+		if (words[0].equals("key") && words.length == 3)
+			addKey(Integer.parseInt(words[1]), parseHex(words[2]));
+		else if (words[0].equals("current") && words.length == 2)
+			setCurrentKey(Integer.parseInt(words[1]));
+		else
+			throw new IllegalArgumentException("Bad key line: " + line);
+	}
+
+	// Apply all lines of a key file. Empty lines and # comments are skipped.
+	public void load(File file) throws IOException, GeneralSecurityException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "US-ASCII"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int hash = line.indexOf('#');
+				if (hash >= 0) line = line.substring(0, hash);
+				if (line.trim().length() > 0) apply(line);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static byte[] parseHex(String hex) {
+		if (hex.length() % 2 != 0 || hex.length() == 0)
+			throw new IllegalArgumentException("Bad key: " + hex);
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes)
+			hex.append(String.format("%02X", b));
+		return hex.toString();
+	}
+
+}
@@ -0,0 +1,24 @@
+package Ticket;
+
+import java.util.concurrent.Future;
+
+/**
+ * Optional server-side check of a card, e.g. for refunds or fraud flags
+ * that the card itself cannot know about. Ticket starts the lookup as soon
+ * as it has read the UID, finishes reading and checking the card while the
+ * lookup runs, and then waits for the answer only until the tap deadline.
+ * Without an answer in time, the offline result stands.
+ */
+public interface OnlineCheck {
+
+	/**
+	 * Start looking up the card. Must not block.
+	 * 
+	 * @param uid
+	 *            Card UID as returned by UltralightUtilities.getUid().
+	 * @return Future answer: TRUE to accept, FALSE to reject, or null for no
+	 *         opinion.
+	 */
+	Future<Boolean> lookup(long uid);
+
+}
@@ -3,6 +3,12 @@ package Ticket;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.smartcardio.CardException;
 import Ultralight.UltralightCommands;
 import Ultralight.UltralightUtilities;
@@ -24,19 +30,32 @@ public class Ticket {
 	public byte[] applicationTag = { (byte) 0x54, (byte) 0x49, (byte) 0x4B,
 			(byte) 0x54 };
 	private static final int usedMacLength  = 2; // Mac length in 4-byte pages.
+	// Byte 25 of the card: the key id and which MAC pages are in use, 7..8
+	// or 9..10. See checkMac() and remac().
+	static final int KEY_ID_MASK = 0x7F;
+	static final int MAC_SLOT_BIT = 0x80;
+	private static final int maxUses = 0xFFFF; // Page 6 below the product and key ids.
 
 	private java.io.PrintStream msgOut; // Use this for any output to the user.
 	private UltralightCommands ul;
 	private UltralightUtilities utils;
-	private TicketMac macAlgorithm;
+	private final KeyRing builtInKeys; // Without a key ring.
+	private final List<TicketListener> listeners = new CopyOnWriteArrayList<TicketListener>();
+	private volatile Denylist denylist = null;
+	private volatile OnlineCheck onlineCheck = null;
+	private volatile long onlineBudgetNanos = 0;
+	private volatile FareRules fareRules = null;
+	private volatile int zone = -1;
+	private volatile KeyRing keyRing = null;
+	private volatile boolean remac = false;
 
 	public Ticket(UltralightCommands ul, java.io.PrintStream msgOut)
 			throws IOException, GeneralSecurityException {
 		this.msgOut = msgOut;
 		this.ul = ul;
 		utils = new UltralightUtilities(ul, msgOut);
-		macAlgorithm = new TicketMac();
-		if (macAlgorithm.getMacLength() < usedMacLength*4)
+		builtInKeys = new KeyRing();
+		if (builtInKeys.getMac(0).getMacLength() < usedMacLength*4)
 			throw new GeneralSecurityException("Bug: The MAC is too short.");
 	}
 
@@ -94,6 +113,14 @@ public class Ticket {
 	// Issue new tickets.
 	public boolean issue(int expiryTime, int uses) throws CardException,
 			GeneralSecurityException {
+		return issue(expiryTime, uses, 0);
+	}
+
+	// Issue a ticket for a product (0..255) that FareRules may restrict.
+	public boolean issue(int expiryTime, int uses, int product)
+			throws CardException, GeneralSecurityException {
+		if (product < 0 || product >= FareRules.PRODUCTS || uses < 0
+				|| uses > maxUses) return false;
 		// Check the format.
 		if (!checkFormat()) return false;
 		// We only use 8 bytes (64 bits) of the MAC.
@@ -102,8 +129,11 @@ public class Ticket {
 		// Page 3 will contain 4 One Time Programmable bytes
 		// Page 4 will contain Application Tag
 		// Page 5 will contain expiryTime in Big Endian Byte order (Java default)
-		// Page 6 will contain number of uses in 4-bytes (Big Endian)
+		// Page 6 will contain the product id, the key id and the number of
+		// uses in 2 bytes (Big Endian)
 		// Pages 7 and 8 will contain first 64bits of MAC(originally 160bit/20byte HMAC-SHA1)
+		// Pages 9 and 10 are for the next MAC when the card is moved to
+		// a new key, see remac()
 		byte[] dataOnCard = new byte[5 * 4];
 		utils.readPages(0, 5, dataOnCard, 0);
 		dataOnCard[2 * 4 + 2] = 0; // Ignore the lock bits.
@@ -124,99 +154,312 @@ public class Ticket {
 		data.put(expiryBytes); // Put into data for MAC calculation
 		utils.writePages(expiryBytes, 0, 5, 1); // Also write into card
 
-		// Page 6(bytes 24-27) will contain number of allowed uses in Big Endian Byte order (Java default)
-		byte[] useBytes = ByteBuffer.allocate(4).putInt(uses).array(); // Number of uses into its own ByteBuffer
+		// Page 6(bytes 24-27) will contain product id, key id and number of allowed uses in Big Endian Byte order (Java default)
+		KeyRing.Key key = keys().getCurrentKey();
+		byte[] useBytes = ByteBuffer.allocate(4).putInt(product << 24 | key.getId() << 16 | uses).array(); // Product, key and uses into its own ByteBuffer
 		data.put(useBytes);
 		utils.writePages(useBytes, 0, 6, 1); // Also write useBytes into card
 
 		// Calculate MAC and write 8 first bytes from it into pages 7 and 8
 		dataOnCard = data.array();
-		byte[] mac = macAlgorithm.generateMac(dataOnCard);
+		dataOnCard[25] = 0; // The key id is not covered by the MAC.
+		byte[] mac = key.getMac().generateMac(dataOnCard);
 		utils.writePages(mac, 0, 7, usedMacLength);
 	
 		return true;
 	}
 
 	// Use the ticket once.
-	public void use(int currentTime) throws CardException,
+	public ValidationResult use(int currentTime) throws CardException,
 			GeneralSecurityException {
-		
-		byte[] dataOnCard = new byte[7 * 4];
-		byte[] macOnCard = new byte[3 * 4];
-		utils.readPages(0, 7, dataOnCard, 0);
-		utils.readPages(7, usedMacLength, macOnCard, 0);
-		dataOnCard[2 * 4 + 2] = 0; // Ignore the lock bits.
-		dataOnCard[2 * 4 + 3] = 0;
+		return use(ul, currentTime);
+	}
 
-		int readExpiryTime = ByteBuffer.wrap(dataOnCard, 20, 4).getInt();
-		int allowedUses = ByteBuffer.wrap(dataOnCard, 24, 4).getInt();
-		
-		// int overflows at 2^31 so need a hack to get all 32 uses in OTP bytes
-		ByteBuffer longbuf = ByteBuffer.allocate(8);
-		byte[] prependZero = { (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0 };
-		longbuf.put(prependZero);
-		longbuf.put(ByteBuffer.wrap(dataOnCard, 12, 4));
-		longbuf.flip();
-		long OTP = longbuf.getLong();
-		
-		// Ignore OTP when calculating MAC
-		dataOnCard[12] = 0;
-		dataOnCard[13] = 0;
-		dataOnCard[14] = 0;
-		dataOnCard[15] = 0;
-		
-		// Prevent error message about MAC with unissued cards
-		if (checkFormat()) { 
-			msgOut.println("ERROR: Trying to use formatted card with no tickets issued");
-			return;
+	// Use the ticket on the card behind the given reader once. A Ticket keeps
+	// no state between validations, so one instance can serve many readers.
+	public ValidationResult use(UltralightCommands ul, int currentTime)
+			throws CardException, GeneralSecurityException {
+		byte[] memory = new byte[(7 + 2 * usedMacLength) * 4];
+		ValidationResult result = validate(ul, memory, currentTime);
+
+		if (result.isValid()) {
+			// Set the next bit in the OTP page. After 32 uses all bits are set.
+			int currentUses = usesFromOtp(ByteBuffer.wrap(memory, 12, 4).getInt());
+			int otp = currentUses == 31 ? -1 : (1 << (currentUses + 1)) - 1;
+			byte[] otpBytes = ByteBuffer.allocate(4).putInt(otp).array();
+			// The page is read back in the same exchange, and the tap counts
+			// only if the card has the new bit.
+			byte[] readBack = new byte[4];
+			if (ul.writeAndReadBack(3, otpBytes, 0, readBack, 0)
+					&& (ByteBuffer.wrap(readBack).getInt() & otp) == otp)
+				result = new ValidationResult(ValidationResult.Reason.VALID,
+						result.getExpiryTime(), result.getRemainingUses() - 1);
+			else
+				result = ValidationResult.IO_ERROR;
+
+			// Move the card to the current key. The tap is valid even if
+			// the card is taken away before this is done.
+			KeyRing keyRing = this.keyRing;
+			if (result.isValid() && remac && keyRing != null
+					&& !remac(ul, memory, keyRing.getCurrentKey())
+					&& msgOut != null)
+				msgOut.println("Could not move the card to key "
+						+ keyRing.getCurrentKeyId() + ". It keeps its old key.");
 		}
-		
-		// System.out.println("OTP: " + OTP);
-		int currentUses = 0;
-		for(long i=0; i<33; i++) {
-			long test = (long)(Math.pow(2, i) - 1);
-		    if(OTP == test) currentUses = (int)i;
+		notifyListeners(memory, result, true);
+		return result;
+	}
+
+	// Check the ticket without using it, e.g. for info kiosks and inspectors.
+	// Never writes to the card. The result tells whether use() would accept
+	// the ticket right now.
+	public ValidationResult peek(int currentTime) throws CardException,
+			GeneralSecurityException {
+		return peek(ul, currentTime);
+	}
+
+	public ValidationResult peek(UltralightCommands ul, int currentTime)
+			throws CardException, GeneralSecurityException {
+		byte[] memory = new byte[(7 + 2 * usedMacLength) * 4];
+		ValidationResult result = validate(ul, memory, currentTime);
+		notifyListeners(memory, result, false);
+		return result;
+	}
+
+	// Read pages 0..10 (UID, OTP, tag, expiry, uses and MACs) into memory
+	// and check them. There is no checkFormat() scan: an unissued card is
+	// recognized from its empty expiry, uses and MAC pages instead.
+	private ValidationResult validate(UltralightCommands ul, byte[] memory,
+			int currentTime) throws CardException, GeneralSecurityException {
+		long deadline = System.nanoTime() + onlineBudgetNanos;
+		OnlineCheck onlineCheck = this.onlineCheck;
+		Future<Boolean> online = null;
+		// All pages are read in one exchange if the reader supports it.
+		// With an online check, the first READ (pages 0..3) goes alone, so
+		// that the lookup starts as soon as the UID is known.
+		int pages = 7 + 2 * usedMacLength;
+		int first = onlineCheck != null ? 4 : pages;
+		if (!ul.readPages(0, first, memory, 0))
+			return ValidationResult.IO_ERROR;
+		if (onlineCheck != null)
+			online = onlineCheck.lookup(UltralightUtilities.getUid(memory, 0));
+		try {
+			if (!ul.readPages(first, pages - first, memory, 4 * first))
+				return ValidationResult.IO_ERROR;
+
+			// Check the application tag (byte 0 is not checked by checkFormat
+			// either) and that something has been issued.
+			for (int i = 1; i < 4; i++)
+				if (memory[4 * 4 + i] != applicationTag[i])
+					return ValidationResult.UNFORMATTED;
+			if (!isIssued(memory, 0)) return ValidationResult.UNFORMATTED;
+
+			int currentUses = usesFromOtp(ByteBuffer.wrap(memory, 12, 4).getInt());
+			int expiryTime = ByteBuffer.wrap(memory, 20, 4).getInt();
+			int remainingUses = (ByteBuffer.wrap(memory, 24, 4).getInt() & maxUses)
+					- currentUses;
+
+			boolean macOk = checkMac(memory, 0, TicketMac.scratch(), keys());
+
+			// The product id is the first byte of page 6.
+			FareRules fareRules = this.fareRules;
+			ValidationResult.Reason fareReason = fareRules == null ? ValidationResult.Reason.VALID
+					: fareRules.check(memory[24] & 0xFF, zone, currentTime);
+
+			ValidationResult.Reason reason = ValidationResult.Reason.VALID;
+			if (!macOk)
+				reason = ValidationResult.Reason.BAD_MAC;
+			else if (denylist != null
+					&& denylist.contains(UltralightUtilities.getUid(memory, 0)))
+				reason = ValidationResult.Reason.DENYLISTED;
+			else if (currentTime > expiryTime)
+				reason = ValidationResult.Reason.EXPIRED;
+			else if (remainingUses < 1 || currentUses > 31)
+				reason = ValidationResult.Reason.EXHAUSTED;
+			else if (fareReason != ValidationResult.Reason.VALID)
+				reason = fareReason;
+			else if (online != null && !awaitOnline(online, deadline))
+				reason = ValidationResult.Reason.REJECTED_ONLINE;
+			return new ValidationResult(reason, expiryTime, remainingUses);
+		} finally {
+			// Stop a lookup that is still running, e.g. after an offline
+			// rejection or when its answer came too late.
+			if (online != null) online.cancel(true);
 		}
-		
-		remainingUses = allowedUses - currentUses;
-		expiryTime = readExpiryTime;
-		
-		byte[] mac = macAlgorithm.generateMac(dataOnCard);
-		// We only use 8 bytes (64 bits) of the MAC.
-		for (int i = 0; i < usedMacLength*4; i++)
-			if (macOnCard[i] != mac[i]) {
-				msgOut.println("ERROR: Invalid Message Authentication Code");
-				isValid = false;
-				return;
-			}
+	}
 
-		if (currentTime > readExpiryTime) {
-			msgOut.println("ERROR: Ticket expired");
-			isValid = false;
-			return;
+	// Wait for the online answer until the deadline. Returns false only if
+	// the server rejected the card in time.
+	private static boolean awaitOnline(Future<Boolean> online, long deadline) {
+		try {
+			Boolean accepted = online.get(
+					Math.max(0, deadline - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+			return accepted == null || accepted;
+		} catch (TimeoutException e) {
+			return true;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
 		}
-		
-		if (remainingUses < 1 || currentUses > 31) {
-			msgOut.println("ERROR: No more uses available");
-			isValid = false;
-			return;
+	}
+
+	/**
+	 * Ask a server about each card in parallel with the offline checks.
+	 * 
+	 * @param onlineCheck
+	 *            Lookup service, or null to validate offline only.
+	 * @param budgetMillis
+	 *            Deadline for the online answer, counted from the start of
+	 *            the validation. The online check never makes a tap longer
+	 *            than this; a late answer is ignored.
+	 */
+	public void setOnlineCheck(OnlineCheck onlineCheck, long budgetMillis) {
+		this.onlineBudgetNanos = budgetMillis * 1000 * 1000;
+		this.onlineCheck = onlineCheck;
+	}
+
+	/**
+	 * Apply product rules in use() and peek().
+	 * 
+	 * @param fareRules
+	 *            Rules to check, or null for none. The rules may be reloaded
+	 *            while the ticket is in use.
+	 * @param zone
+	 *            Zone of the gates served by this Ticket, 0..63, or -1 to
+	 *            check times only.
+	 * @throws IllegalArgumentException
+	 *             If the zone is out of range.
+	 */
+	public void setFareRules(FareRules fareRules, int zone) {
+		if (zone < -1 || zone >= FareRules.ZONES)
+			throw new IllegalArgumentException("Zone must be -1.."
+					+ (FareRules.ZONES - 1) + ": " + zone);
+		this.zone = zone;
+		this.fareRules = fareRules;
+	}
+
+	/**
+	 * Check MACs with the keys of a key ring and issue with its current key.
+	 * 
+	 * @param keyRing
+	 *            Keys by key id, or null to use the built-in key only.
+	 * @param remac
+	 *            If true, use() rewrites the MAC of a valid card that has an
+	 *            older key, with the current key.
+	 */
+	public void setKeyRing(KeyRing keyRing, boolean remac) {
+		this.remac = remac;
+		this.keyRing = keyRing;
+	}
+
+	// Move a card read into memory to a new key. The new MAC is written to
+	// the MAC pages that are not in use, and then one write of page 6 sets
+	// the key id and switches to those pages. A card taken away at any
+	// point has a key id that matches the MAC pages it points to. Returns
+	// false if a write failed, and the card may still have the old key.
+	private boolean remac(UltralightCommands ul, byte[] memory, KeyRing.Key key)
+			throws CardException, GeneralSecurityException {
+		if ((memory[25] & KEY_ID_MASK) == key.getId()) return true;
+		int slot = (memory[25] & MAC_SLOT_BIT) ^ MAC_SLOT_BIT;
+		byte[] scratch = TicketMac.scratch();
+		macInput(memory, 0, scratch);
+		byte[] mac = key.getMac().generateMac(scratch);
+		int page = slot == 0 ? 7 : 7 + usedMacLength;
+		for (int i = 0; i < usedMacLength; i++)
+			if (!ul.writeBinary(page + i, mac, 4 * i)) return false;
+		memory[25] = (byte) (slot | key.getId());
+		return ul.writeBinary(6, memory, 24);
+	}
+
+	private KeyRing keys() {
+		KeyRing keyRing = this.keyRing;
+		return keyRing == null ? builtInKeys : keyRing;
+	}
+
+	// Reject cards on this list in use() and peek(). Null for none.
+	public void setDenylist(Denylist denylist) {
+		this.denylist = denylist;
+	}
+
+	public void addListener(TicketListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(TicketListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void notifyListeners(byte[] memory, ValidationResult result,
+			boolean used) {
+		if (listeners.isEmpty()) return;
+		long uid = result == ValidationResult.IO_ERROR ? 0 : UltralightUtilities
+				.getUid(memory, 0);
+		for (TicketListener listener : listeners) {
+			// A broken subscriber must not fail the tap.
+			try {
+				listener.ticketValidated(uid, result, used);
+			} catch (RuntimeException e) {
+				msgOut.println("Ticket listener failed: " + e);
+			}
 		}
-		
-		// System.out.println("CurrentUses before incrementation: " + currentUses);
-		currentUses++;
-		OTP = (long)(Math.pow(2, currentUses) - 1);
-		// System.out.println("OTP: " + OTP);
-		
-		byte[] OTPBytes = ByteBuffer.allocate(8).putLong(OTP).array();
-		utils.writePages(OTPBytes, 4, 3, 1);
-		remainingUses--;
-		isValid = true;
 	}
 
-	public boolean reissue(int expiryTime, int uses) throws CardException,
-	GeneralSecurityException {
+	// Check the MAC of a memory image that starts at offset with the key of
+	// the ring that byte 25 names. Its high bit tells which MAC pages are in
+	// use: 7..8, or 9..10 after remac(). validate() and TicketAudit both
+	// check cards with this.
+	static boolean checkMac(byte[] memory, int offset, byte[] scratch,
+			KeyRing keyRing) throws GeneralSecurityException {
+		TicketMac macAlgorithm = keyRing.getMac(memory[offset + 25] & KEY_ID_MASK);
+		if (macAlgorithm == null) return false;
+		macInput(memory, offset, scratch);
+		byte[] mac = macAlgorithm.generateMac(scratch);
+		int macOffset = offset + 4 * ((memory[offset + 25] & MAC_SLOT_BIT) == 0 ? 7
+				: 7 + usedMacLength);
+		for (int i = 0; i < usedMacLength * 4; i++)
+			if (memory[macOffset + i] != mac[i]) return false;
+		return true;
+	}
+
+	// True if a ticket has been issued on the memory image that starts at
+	// offset: the expiry, uses or either MAC slot (pages 5..6 + 2 *
+	// usedMacLength) is not empty. validate() and TicketAudit both check
+	// cards with this.
+	static boolean isIssued(byte[] memory, int offset) {
+		for (int i = offset + 5 * 4; i < offset + 4 * (7 + 2 * usedMacLength); i++)
+			if (memory[i] != 0) return true;
+		return false;
+	}
+
+	// The MAC covers pages 0..6 without the lock bits, the OTP and byte 25,
+	// which are zeroed in the scratch copy (7 pages).
+	private static void macInput(byte[] memory, int offset, byte[] scratch) {
+		System.arraycopy(memory, offset, scratch, 0, 7 * 4);
+		scratch[2 * 4 + 2] = 0;
+		scratch[2 * 4 + 3] = 0;
+		for (int i = 12; i < 16; i++)
+			scratch[i] = 0;
+		scratch[25] = 0;
+	}
+
+	// Number of uses recorded in the OTP page. Each use sets the next bit
+	// from the least significant end, so n uses is 2^n - 1. Any other bit
+	// pattern counts as zero uses, like in use().
+	static int usesFromOtp(int otp) {
+		if ((otp & (otp + 1)) != 0) return 0;
+		return Integer.bitCount(otp);
+	}
+
+	// Reissue the ticket with a new expiry time and total number of uses.
+	// The result holds the new expiry time and remaining uses, so the
+	// caller need not read the card again.
+	public ValidationResult reissue(int expiryTime, int uses)
+			throws CardException, GeneralSecurityException {
 		// Check the format.
-		if (!checkReIssuability()) return false;
+		if (!checkReIssuability()) return ValidationResult.UNFORMATTED;
 		byte[] dataOnCard = new byte[5 * 4];
 		utils.readPages(0, 5, dataOnCard, 0);
 		dataOnCard[2 * 4 + 2] = 0; // Ignore the lock bits.
@@ -246,8 +489,8 @@ public class Ticket {
 		    if(OTP == test) currentUses = (int)i;
 		}
 		
-		if(uses > 32) { msgOut.println("ERROR: Cannot add more than 32 uses"); return false; }
-		if(uses < currentUses) { msgOut.println("ERROR: Cannot issue a ticket for " + String.valueOf(uses) + " uses since ticked already used " + String.valueOf(currentUses) + " times"); return false; }
+		if(uses > maxUses) { msgOut.println("ERROR: Cannot add more than " + maxUses + " uses"); return new ValidationResult(ValidationResult.Reason.INVALID_USES, 0, 0); }
+		if(uses < currentUses) { msgOut.println("ERROR: Cannot issue a ticket for " + String.valueOf(uses) + " uses since ticked already used " + String.valueOf(currentUses) + " times"); return new ValidationResult(ValidationResult.Reason.INVALID_USES, 0, 0); }
 		
 		
 		// Wrap into ByteBuffer for easier handling
@@ -257,20 +500,29 @@ public class Ticket {
 
 		// Page 4(bytes 16-19) will contain expiryTime in Big Endian Byte order (Java default)
 		data.put(expiryBytes); // Put into data for MAC calculation
-		utils.writePages(expiryBytes, 0, 5, 1); // Also write into card
+		if (!utils.writePages(expiryBytes, 0, 5, 1)) // Also write into card
+			return ValidationResult.IO_ERROR;
 
 		// Page 5(bytes 20-23) will contain number of allowed uses in Big Endian Byte order (Java default)
-		byte[] useBytes = ByteBuffer.allocate(4).putInt(uses).array(); // Number of uses into its own ByteBuffer
+		// The product id in the first byte stays as it was issued. The
+		// ticket moves to the current key.
+		byte[] usesPage = new byte[4];
+		utils.readPages(6, 1, usesPage, 0);
+		KeyRing.Key key = keys().getCurrentKey();
+		byte[] useBytes = ByteBuffer.allocate(4).putInt((usesPage[0] & 0xFF) << 24 | key.getId() << 16 | uses).array(); // Product, key and uses into its own ByteBuffer
 		data.put(useBytes);
-		utils.writePages(useBytes, 0, 6, 1); // Also write useBytes into card
+		if (!utils.writePages(useBytes, 0, 6, 1)) // Also write useBytes into card
+			return ValidationResult.IO_ERROR;
 
 		// Calculate MAC and write 8 first bytes from it into pages 6 and 7
 		dataOnCard = data.array();
-		byte[] mac = macAlgorithm.generateMac(dataOnCard);
-		utils.writePages(mac, 0, 7, usedMacLength);
-		remainingUses = uses - currentUses;
-		
-		return true;
+		dataOnCard[25] = 0; // The key id is not covered by the MAC.
+		byte[] mac = key.getMac().generateMac(dataOnCard);
+		if (!utils.writePages(mac, 0, 7, usedMacLength))
+			return ValidationResult.IO_ERROR;
+
+		return new ValidationResult(ValidationResult.Reason.VALID, expiryTime,
+				uses - currentUses);
 	}
 	
 	public boolean lock() throws CardException,
@@ -282,24 +534,5 @@ public class Ticket {
 		utils.writePages(lockBytes, 0, 2, 1);
 		return true;
 	}
-	
-	private Boolean isValid = false;
-	private int remainingUses = 0;
-	private int expiryTime = 0;
-
-	// After validation, get ticket status: was it valid or not?
-	public boolean isValid() {
-		return isValid;
-	}
-
-	// After validation, get the number of remaining uses.
-	public int getRemainingUses() {
-		return remainingUses;
-	}
-
-	// After validation, get the expiry time.
-	public int getExpiryTime() {
-		return expiryTime;
-	}
 
 }
@@ -0,0 +1,257 @@
+package Ticket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import Ultralight.UltralightUtilities;
+
+/**
+ * Offline audit of dumped card memory images. The input file is a packed
+ * sequence of 64-byte images, each in the same layout that
+ * UltralightUtilities.readMemory() returns. Every image is checked with the
+ * same rules as Ticket.use(): application tag, MAC and the number of uses
+ * recorded in the OTP page.
+ *
+ * The file is memory-mapped in chunks. Each worker thread has its own copy
+ * of the key ring and its own counters and takes the next chunk when it is done
+ * with the previous one, so the workers share nothing but the chunk counter.
+ */
+public class TicketAudit {
+
+	public static final int IMAGE_SIZE = 64;
+
+	// Images per chunk. 64K images is 4 MB of mapped file per chunk.
+	private static final int chunkImages = 1 << 16;
+
+	// Why an image was reported as anomalous.
+	public enum Anomaly {
+		BAD_MAC("invalid MAC"),
+		BAD_OTP("OTP page is not a valid use counter"),
+		OVERUSED("more uses recorded than issued");
+
+		private final String description;
+
+		Anomaly(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	/**
+	 * Counters for a set of audited images, and the anomalous ones.
+	 */
+	public static class Summary {
+		public long images = 0;
+		public long notTickets = 0; // No application tag.
+		public long unissued = 0; // Formatted but nothing issued.
+		public long valid = 0; // Would be accepted by use() at audit time.
+		public long expired = 0;
+		public long exhausted = 0;
+		public long anomalous = 0;
+		public final long[] anomalies = new long[Anomaly.values().length];
+		public final List<Long> anomalousUids = new ArrayList<Long>();
+		public final List<Anomaly> anomalousReasons = new ArrayList<Anomaly>();
+
+		void add(Summary other) {
+			images += other.images;
+			notTickets += other.notTickets;
+			unissued += other.unissued;
+			valid += other.valid;
+			expired += other.expired;
+			exhausted += other.exhausted;
+			anomalous += other.anomalous;
+			for (int i = 0; i < anomalies.length; i++)
+				anomalies[i] += other.anomalies[i];
+			anomalousUids.addAll(other.anomalousUids);
+			anomalousReasons.addAll(other.anomalousReasons);
+		}
+
+		void addAnomaly(long uid, Anomaly anomaly) {
+			anomalous++;
+			anomalies[anomaly.ordinal()]++;
+			anomalousUids.add(uid);
+			anomalousReasons.add(anomaly);
+		}
+
+		public void print(PrintStream out) {
+			out.println("Images:       " + images);
+			out.println("Not tickets:  " + notTickets);
+			out.println("Unissued:     " + unissued);
+			out.println("Valid:        " + valid);
+			out.println("Expired:      " + expired);
+			out.println("Exhausted:    " + exhausted);
+			out.println("Anomalous:    " + anomalous);
+			for (Anomaly a : Anomaly.values())
+				out.println("  " + a.getDescription() + ": "
+						+ anomalies[a.ordinal()]);
+			for (int i = 0; i < anomalousUids.size(); i++)
+				out.println(UltralightUtilities.uidToString(anomalousUids.get(i))
+						+ " " + anomalousReasons.get(i).getDescription());
+		}
+	}
+
+	private final byte[] applicationTag;
+	private final int threads;
+	private KeyRing keyRing = null;
+
+	public TicketAudit(byte[] applicationTag, int threads) {
+		this.applicationTag = applicationTag;
+		this.threads = threads;
+	}
+
+	// Check tickets with rotated keys too. Without a key ring only the
+	// built-in key (id 0) is known.
+	public void setKeyRing(KeyRing keyRing) {
+		this.keyRing = keyRing;
+	}
+
+	// Check one image and count the result in summary. Time is in minutes
+	// since January 1, 1970, like in Ticket.use().
+	void audit(byte[] memory, int currentTime, byte[] scratch,
+			KeyRing keys, Summary summary)
+			throws GeneralSecurityException {
+		summary.images++;
+		for (int i = 1; i < 4; i++)
+			if (memory[4 * 4 + i] != applicationTag[i]) {
+				summary.notTickets++;
+				return;
+			}
+		if (!Ticket.isIssued(memory, 0)) {
+			summary.unissued++;
+			return;
+		}
+
+		long uid = UltralightUtilities.getUid(memory, 0);
+		if (!Ticket.checkMac(memory, 0, scratch, keys)) {
+			summary.addAnomaly(uid, Anomaly.BAD_MAC);
+			return;
+		}
+		int otp = ((memory[12] & 0xFF) << 24) | ((memory[13] & 0xFF) << 16)
+				| ((memory[14] & 0xFF) << 8) | (memory[15] & 0xFF);
+		if ((otp & (otp + 1)) != 0) {
+			summary.addAnomaly(uid, Anomaly.BAD_OTP);
+			return;
+		}
+		int currentUses = Ticket.usesFromOtp(otp);
+		// Bytes 24 and 25 are the product and key ids.
+		int allowedUses = ((memory[26] & 0xFF) << 8) | (memory[27] & 0xFF);
+		if (currentUses > allowedUses) {
+			summary.addAnomaly(uid, Anomaly.OVERUSED);
+			return;
+		}
+		int expiryTime = ((memory[20] & 0xFF) << 24)
+				| ((memory[21] & 0xFF) << 16) | ((memory[22] & 0xFF) << 8)
+				| (memory[23] & 0xFF);
+		if (currentTime > expiryTime)
+			summary.expired++;
+		else if (allowedUses - currentUses < 1 || currentUses > 31)
+			summary.exhausted++;
+		else
+			summary.valid++;
+	}
+
+	// Audit all images in the file. A trailing partial image is ignored.
+	public Summary audit(File file, final int currentTime) throws IOException,
+			GeneralSecurityException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long images = channel.size() / IMAGE_SIZE;
+			final long chunks = (images + chunkImages - 1) / chunkImages;
+			final AtomicLong nextChunk = new AtomicLong(0);
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Summary>> results = new ArrayList<Future<Summary>>();
+				for (int t = 0; t < threads; t++)
+					results.add(pool.submit(new Callable<Summary>() {
+						public Summary call() throws Exception {
+							KeyRing keys = keyRing == null ? new KeyRing()
+									: keyRing.copy();
+							byte[] memory = new byte[IMAGE_SIZE];
+							byte[] scratch = new byte[7 * 4];
+							Summary summary = new Summary();
+							long chunk;
+							while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+								long first = chunk * chunkImages;
+								long count = Math.min(chunkImages, images - first);
+								MappedByteBuffer buffer = channel.map(
+										FileChannel.MapMode.READ_ONLY, first
+												* IMAGE_SIZE, count * IMAGE_SIZE);
+								for (long i = 0; i < count; i++) {
+									buffer.get(memory);
+									audit(memory, currentTime, scratch,
+											keys, summary);
+								}
+							}
+							return summary;
+						}
+					}));
+
+				Summary total = new Summary();
+				for (Future<Summary> result : results)
+					total.add(result.get());
+				return total;
+			} catch (InterruptedException e) {
+				throw new IOException("Audit interrupted.");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof GeneralSecurityException)
+					throw (GeneralSecurityException) cause;
+				throw new RuntimeException(cause);
+			} finally {
+				pool.shutdownNow();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: TicketAudit <image file> [threads] [key file]");
+			System.exit(1);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 1) threads = Integer.parseInt(args[1]);
+
+		// Use the same application tag as the ticket application.
+		byte[] applicationTag = { (byte) 0x54, (byte) 0x49, (byte) 0x4B,
+				(byte) 0x54 };
+		// Time expressed as MINUTES since January 1, 1970.
+		int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
+
+		TicketAudit audit = new TicketAudit(applicationTag, threads);
+		if (args.length > 2) {
+			KeyRing keyRing = new KeyRing();
+			keyRing.load(new File(args[2]));
+			audit.setKeyRing(keyRing);
+		}
+		long start = System.nanoTime();
+		Summary summary = audit.audit(new File(args[0]), currentTime);
+		long elapsed = System.nanoTime() - start;
+
+		summary.print(System.out);
+		System.out.printf("Audited %d images with %d threads in %.3f s (%.0f images/s)%n",
+				summary.images, threads, elapsed / 1e9, summary.images
+						/ (elapsed / 1e9));
+	}
+
+}
@@ -0,0 +1,23 @@
+package Ticket;
+
+/**
+ * Subscriber for ticket validations, e.g. for metrics, journaling or gate
+ * displays. Listeners are called on the thread that validated the ticket,
+ * after the card has been written, so they must return quickly.
+ */
+public interface TicketListener {
+
+	/**
+	 * Called after every Ticket.use() and Ticket.peek().
+	 * 
+	 * @param uid
+	 *            Card UID as returned by UltralightUtilities.getUid(), or 0
+	 *            if the card could not be read.
+	 * @param result
+	 *            Outcome of the validation.
+	 * @param used
+	 *            True for use(), false for peek().
+	 */
+	void ticketValidated(long uid, ValidationResult result, boolean used);
+
+}
@@ -20,22 +20,67 @@ public class TicketMac {
 			(byte) 0x4A, (byte) 0xAD, (byte) 0x9D, (byte) 0xD6, (byte) 0xB0,
 			(byte) 0xB6, (byte) 0x29 };
 
-	private static SecretKeySpec hmacKey;
-	private Mac mac;
+	// Length of the MAC input of a ticket: pages 0..6, see Ticket.macInput().
+	static final int DATA_LENGTH = 7 * 4;
+
+	// Scratch buffer for the MAC input, one per thread, so that a tap does
+	// not allocate one.
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[DATA_LENGTH];
+		}
+	};
+
+	private SecretKeySpec hmacKey;
+	// Mac is not thread-safe and one Ticket may serve several readers, so
+	// every thread gets its own.
+	private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+		protected Mac initialValue() {
+			try {
+				return newMac();
+			} catch (GeneralSecurityException e) {
+				// The constructor has made one with the same key.
+				throw new IllegalStateException(e);
+			}
+		}
+	};
 
 	public TicketMac() throws GeneralSecurityException {
 		hmacKey = new SecretKeySpec(secretKey, "HmacSHA1");
-		mac = Mac.getInstance("HmacSHA1");
+		mac.set(newMac());
+	}
+
+	// MAC with another key, e.g. one received for key rotation. See KeyRing.
+	public TicketMac(byte[] key) throws GeneralSecurityException {
+		secretKey = key.clone();
+		hmacKey = new SecretKeySpec(secretKey, "HmacSHA1");
+		mac.set(newMac());
+	}
+
+	private Mac newMac() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA1");
 		mac.init(hmacKey);
+		return mac;
+	}
+
+	// The scratch buffer of the calling thread, DATA_LENGTH bytes.
+	static byte[] scratch() {
+		return scratch.get();
+	}
+
+	// A TicketMac with the same key, for a thread of its own.
+	public TicketMac copy() throws GeneralSecurityException {
+		return new TicketMac(secretKey);
 	}
 
 	public byte[] generateMac(byte[] data) throws GeneralSecurityException {
+		Mac mac = this.mac.get();
 		mac.reset();
 		return mac.doFinal(data);
 	}
 
 	public int getMacLength() {
-		return mac.getMacLength();
+		return mac.get().getMacLength();
 	}
 
 }
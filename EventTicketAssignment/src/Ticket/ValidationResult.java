@@ -0,0 +1,69 @@
+package Ticket;
+
+/**
+ * Immutable outcome of Ticket.use(), Ticket.peek() or Ticket.reissue().
+ * Results that carry no ticket data are shared constants, so failing taps
+ * allocate nothing.
+ */
+public final class ValidationResult {
+
+	public enum Reason {
+		VALID("Ticket is valid"),
+		BAD_MAC("Invalid Message Authentication Code"),
+		EXPIRED("Ticket expired"),
+		EXHAUSTED("No more uses available"),
+		DENYLISTED("Card has been blocked"),
+		REJECTED_ONLINE("Card was rejected by the validation service"),
+		WRONG_ZONE("Ticket is not valid in this zone"),
+		NOT_VALID_NOW("Ticket is not valid at this time"),
+		UNFORMATTED("Card is not formatted or no tickets have been issued"),
+		INVALID_USES("The number of uses is not possible on this card"),
+		IO_ERROR("Reading or writing the card failed");
+
+		private final String message;
+
+		Reason(String message) {
+			this.message = message;
+		}
+
+		// Message for the user. A constant, so no strings are built.
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	public static final ValidationResult UNFORMATTED = new ValidationResult(
+			Reason.UNFORMATTED, 0, 0);
+	public static final ValidationResult IO_ERROR = new ValidationResult(
+			Reason.IO_ERROR, 0, 0);
+
+	private final Reason reason;
+	private final int expiryTime;
+	private final int remainingUses;
+
+	public ValidationResult(Reason reason, int expiryTime, int remainingUses) {
+		this.reason = reason;
+		this.expiryTime = expiryTime;
+		this.remainingUses = remainingUses;
+	}
+
+	// Was the ticket valid?
+	public boolean isValid() {
+		return reason == Reason.VALID;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	// Expiry time in minutes since January 1, 1970. Zero if it was not read.
+	public int getExpiryTime() {
+		return expiryTime;
+	}
+
+	// Remaining uses after this validation. Zero if it was not read.
+	public int getRemainingUses() {
+		return remainingUses;
+	}
+
+}
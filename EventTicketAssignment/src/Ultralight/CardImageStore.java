@@ -0,0 +1,399 @@
+package Ultralight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Binary store for 64-byte card memory snapshots, keyed by card UID.
+ *
+ * Snapshots are fixed-size records in memory-mapped segment files, so
+ * appending one is a copy into the current segment. Each record points to
+ * the previous record of the same card, which gives every card a history
+ * chain. The newest record of each card is found through a UID index, an
+ * open-addressing hash table in a memory-mapped file, so opening the store
+ * and looking up a card take a few page reads however many snapshots it
+ * has. The index header tells how many records the index covers; records
+ * appended after that, e.g. by a process that crashed, are added on open.
+ * If the index is missing or does not match the segments, it is rebuilt
+ * from them.
+ *
+ * One process at a time may open a store: the constructor takes an
+ * exclusive lock on the store directory and fails if another process
+ * holds it. Within a process the methods are synchronized.
+ *
+ * Record layout (80 bytes):
+ *   0..63   memory image, as returned by UltralightUtilities.readMemory()
+ *   64..71  time of the snapshot in milliseconds since January 1, 1970
+ *   72..79  number of the previous record of the same card plus one,
+ *           or 0 if this is the first one
+ * A record with time 0 has not been written.
+ */
+public class CardImageStore {
+
+	public static final int IMAGE_SIZE = 64;
+	public static final int RECORD_SIZE = IMAGE_SIZE + 16;
+
+	/**
+	 * One snapshot from the history of a card.
+	 */
+	public static class Snapshot {
+		public final long recordNumber;
+		public final long time; // Milliseconds since January 1, 1970.
+		public final byte[] image;
+
+		Snapshot(long recordNumber, long time, byte[] image) {
+			this.recordNumber = recordNumber;
+			this.time = time;
+			this.image = image;
+		}
+	}
+
+	// Index file: magic, number of records covered, number of slots and
+	// number of used slots, then the slots. Each 16-byte slot holds uid + 1
+	// (0 for an empty slot) and the number of the newest record for that
+	// card plus one.
+	private static final long INDEX_MAGIC = 0x5449434B49583031L; // "TICKIX01"
+	private static final int INDEX_HEADER = 32;
+
+	private final File directory;
+	private final int recordsPerSegment;
+	private final List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long recordCount = 0;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	private RandomAccessFile indexFile;
+	private MappedByteBuffer index;
+	private int indexMask;
+	private int indexSize = 0;
+
+	/**
+	 * Open the store in the given directory, creating it if needed.
+	 *
+	 * @param directory
+	 *            Directory for the segment files.
+	 * @param recordsPerSegment
+	 *            Number of records in each segment file of a new store. An
+	 *            existing store keeps the segment size it was created with.
+	 */
+	public CardImageStore(File directory, int recordsPerSegment)
+			throws IOException {
+		if (recordsPerSegment < 1
+				|| (long) recordsPerSegment * RECORD_SIZE > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Bad segment size "
+					+ recordsPerSegment + ".");
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory + ".");
+		lockFile = new RandomAccessFile(new File(directory, "store.lock"), "rw");
+		FileLock acquired = null;
+		try {
+			acquired = lockFile.getChannel().tryLock();
+		} catch (java.nio.channels.OverlappingFileLockException e) {
+			// Held by this process.
+		}
+		if (acquired == null) {
+			lockFile.close();
+			throw new IOException("Card image store " + directory
+					+ " is in use by another process.");
+		}
+		lock = acquired;
+		try {
+			if (segmentFile(0).exists())
+				recordsPerSegment = (int) (segmentFile(0).length() / RECORD_SIZE);
+			this.recordsPerSegment = recordsPerSegment;
+			while (segmentFile(segments.size()).exists())
+				mapSegment(segments.size());
+			if (!openIndex()) createIndex(1 << 10, 0);
+			// Add the records that the index does not cover yet.
+			while (recordCount < (long) segments.size() * recordsPerSegment
+					&& recordTime(recordCount) != 0) {
+				indexPut(UltralightUtilities.getUid(readImage(recordCount), 0),
+						recordCount);
+				recordCount++;
+			}
+			index.putLong(8, recordCount);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// Open the store. A new store gets 64K records (5 MB) per segment.
+	public CardImageStore(File directory) throws IOException {
+		this(directory, 1 << 16);
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, String.format("segment-%05d.img", segment));
+	}
+
+	private MappedByteBuffer mapSegment(int segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+		long size = (long) recordsPerSegment * RECORD_SIZE;
+		if (file.length() < size) file.setLength(size);
+		MappedByteBuffer buffer = file.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+		files.add(file);
+		segments.add(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Append a snapshot of a card memory image.
+	 *
+	 * @param memory
+	 *            64-byte memory image. The UID is taken from pages 0 and 1.
+	 * @param time
+	 *            Time of the snapshot in milliseconds since January 1, 1970.
+	 *            Must not be 0.
+	 * @return Number of the new record.
+	 */
+	public synchronized long append(byte[] memory, long time)
+			throws IOException {
+		if (memory == null || memory.length != IMAGE_SIZE)
+			throw new IllegalArgumentException("Card image must be 64 bytes.");
+		if (time == 0)
+			throw new IllegalArgumentException("Snapshot time must not be 0.");
+		int segment = (int) (recordCount / recordsPerSegment);
+		int position = (int) (recordCount % recordsPerSegment) * RECORD_SIZE;
+		MappedByteBuffer buffer = segment < segments.size() ? segments
+				.get(segment) : mapSegment(segment);
+
+		long uid = UltralightUtilities.getUid(memory, 0);
+		long previous = indexGet(uid);
+		ByteBuffer record = buffer.duplicate();
+		record.position(position);
+		record.put(memory);
+		// The time goes last: a record is valid once its time is non-zero.
+		record.putLong(position + IMAGE_SIZE + 8, previous + 1);
+		record.putLong(position + IMAGE_SIZE, time);
+		indexPut(uid, recordCount);
+		index.putLong(8, recordCount + 1);
+		return recordCount++;
+	}
+
+	// Number of snapshots in the store.
+	public synchronized long size() {
+		return recordCount;
+	}
+
+	// Newest snapshot of the card, or null if there is none.
+	public synchronized Snapshot getLatest(long uid) {
+		long record = indexGet(uid);
+		return record < 0 ? null : readSnapshot(record);
+	}
+
+	/**
+	 * History of a card, newest snapshot first.
+	 *
+	 * @param uid
+	 *            Card UID as returned by UltralightUtilities.getUid().
+	 * @param max
+	 *            Maximum number of snapshots to return.
+	 */
+	public synchronized List<Snapshot> getHistory(long uid, int max) {
+		List<Snapshot> history = new ArrayList<Snapshot>();
+		long record = indexGet(uid);
+		while (record >= 0 && history.size() < max) {
+			Snapshot snapshot = readSnapshot(record);
+			history.add(snapshot);
+			record = recordBuffer(record).getLong(
+					recordPosition(record) + IMAGE_SIZE + 8) - 1;
+		}
+		return history;
+	}
+
+	// Write the mapped segments and the index to disk.
+	public synchronized void flush() {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+		if (index != null) index.force();
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		for (RandomAccessFile file : files)
+			file.close();
+		files.clear();
+		segments.clear();
+		if (indexFile != null) indexFile.close();
+		indexFile = null;
+		index = null;
+		if (lock.isValid()) lock.release();
+		lockFile.close();
+	}
+
+	private MappedByteBuffer recordBuffer(long record) {
+		return segments.get((int) (record / recordsPerSegment));
+	}
+
+	private int recordPosition(long record) {
+		return (int) (record % recordsPerSegment) * RECORD_SIZE;
+	}
+
+	private byte[] readImage(long record) {
+		ByteBuffer buffer = recordBuffer(record).duplicate();
+		buffer.position(recordPosition(record));
+		byte[] image = new byte[IMAGE_SIZE];
+		buffer.get(image);
+		return image;
+	}
+
+	private long recordTime(long record) {
+		return recordBuffer(record).getLong(recordPosition(record) + IMAGE_SIZE);
+	}
+
+	private Snapshot readSnapshot(long record) {
+		return new Snapshot(record, recordTime(record), readImage(record));
+	}
+
+	private File indexFile(int slots) {
+		return new File(directory, String.format("index-%d.idx", slots));
+	}
+
+	// Map the largest index file. Returns false if there is none or it does
+	// not match the segments; stale index files are deleted.
+	private boolean openIndex() throws IOException {
+		int slots = 0;
+		File[] names = directory.listFiles();
+		for (File file : names == null ? new File[0] : names)
+			if (file.getName().matches("index-\\d+\\.idx")) {
+				int n = Integer.parseInt(file.getName().replaceAll("\\D", ""));
+				if (n > slots) slots = n;
+			}
+		if (slots == 0) return false;
+		boolean good = Integer.bitCount(slots) == 1
+				&& indexFile(slots).length() == INDEX_HEADER + (long) slots * 16;
+		if (good) {
+			mapIndex(slots, false);
+			long covered = index.getLong(8);
+			good = index.getLong(0) == INDEX_MAGIC && index.getInt(16) == slots
+					&& covered <= (long) segments.size() * recordsPerSegment
+					&& (covered == 0 || recordTime(covered - 1) != 0);
+			if (good) {
+				indexMask = slots - 1;
+				indexSize = index.getInt(20);
+				recordCount = covered;
+			} else {
+				indexFile.close();
+				indexFile = null;
+				index = null;
+			}
+		}
+		for (File file : names)
+			if (file.getName().matches("index-\\d+\\.idx")
+					&& (!good || !file.equals(indexFile(slots))))
+				file.delete();
+		return good;
+	}
+
+	// Create an empty index file covering no records.
+	private void createIndex(int slots, long covered) throws IOException {
+		if (indexFile != null) indexFile.close();
+		File file = indexFile(slots);
+		file.delete();
+		mapIndex(slots, true);
+		index.putLong(0, INDEX_MAGIC);
+		index.putLong(8, covered);
+		index.putInt(16, slots);
+		index.putInt(20, 0);
+		indexMask = slots - 1;
+		indexSize = 0;
+	}
+
+	private void mapIndex(int slots, boolean create) throws IOException {
+		indexFile = new RandomAccessFile(indexFile(slots), "rw");
+		long size = INDEX_HEADER + (long) slots * 16;
+		if (create) indexFile.setLength(size);
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				size);
+	}
+
+	private int indexSlot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & indexMask;
+		while (true) {
+			long k = index.getLong(INDEX_HEADER + slot * 16);
+			if (k == 0 || k == key) return slot;
+			slot = (slot + 1) & indexMask;
+		}
+	}
+
+	// Newest record number of the card, or -1.
+	private long indexGet(long uid) {
+		return index.getLong(INDEX_HEADER + indexSlot(uid + 1) * 16 + 8) - 1;
+	}
+
+	private void indexPut(long uid, long record) throws IOException {
+		int slot = indexSlot(uid + 1);
+		if (index.getLong(INDEX_HEADER + slot * 16) == 0) {
+			if (2 * (indexSize + 1) > indexMask + 1) {
+				growIndex();
+				slot = indexSlot(uid + 1);
+			}
+			indexSize++;
+			index.putInt(20, indexSize);
+			index.putLong(INDEX_HEADER + slot * 16, uid + 1);
+		}
+		index.putLong(INDEX_HEADER + slot * 16 + 8, record + 1);
+	}
+
+	// Move the index to a file twice the size. The new file is complete
+	// before the old one is deleted, so a crash leaves a usable index.
+	private void growIndex() throws IOException {
+		MappedByteBuffer old = index;
+		int oldSlots = indexMask + 1;
+		RandomAccessFile oldFile = indexFile;
+		indexFile = null;
+		createIndex(oldSlots * 2, old.getLong(8));
+		int size = 0;
+		for (int i = 0; i < oldSlots; i++) {
+			long key = old.getLong(INDEX_HEADER + i * 16);
+			if (key == 0) continue;
+			int slot = indexSlot(key);
+			index.putLong(INDEX_HEADER + slot * 16, key);
+			index.putLong(INDEX_HEADER + slot * 16 + 8,
+					old.getLong(INDEX_HEADER + i * 16 + 8));
+			size++;
+		}
+		indexSize = size;
+		index.putInt(20, size);
+		index.force();
+		oldFile.close();
+		indexFile(oldSlots).delete();
+	}
+
+	// Print the history of one card: CardImageStore <directory> <uid>
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: CardImageStore <directory> <uid in hex> [max]");
+			System.exit(1);
+		}
+		CardImageStore store = new CardImageStore(new File(args[0]));
+		long uid = Long.parseLong(args[1], 16);
+		int max = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+		long start = System.nanoTime();
+		List<Snapshot> history = store.getHistory(uid, max);
+		long elapsed = System.nanoTime() - start;
+		System.out.println(history.size() + " snapshots of card "
+				+ UltralightUtilities.uidToString(uid) + " (lookup "
+				+ elapsed / 1000 + " us):");
+		for (Snapshot snapshot : history) {
+			System.out.println("\nRecord " + snapshot.recordNumber + " at "
+					+ new Date(snapshot.time));
+			UltralightUtilities.printMemory(System.out, snapshot.image);
+		}
+		store.close();
+	}
+
+}
@@ -1,6 +1,14 @@
 package Ultralight;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.smartcardio.CardException;
 
 /**
@@ -19,6 +27,54 @@ public class CardReader {
 	protected javax.smartcardio.Card card = null;
 	protected javax.smartcardio.CardChannel channel = null;
 
+	// Counts initCard() calls, so that cached card data can be recognized as
+	// belonging to an earlier card.
+	private volatile int cardGeneration = 0;
+
+	// Exclusive sessions, see beginSession(). The owner and timer are
+	// guarded by this.
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Card session watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private volatile long maxSessionMillis = 1000;
+	private Thread sessionOwner = null;
+	private ScheduledFuture<?> sessionTimer = null;
+	private long sessionStart = 0;
+	private volatile boolean sessionExpired = false;
+	// The card is held exclusively by the session. Only the owner thread
+	// uses it.
+	private boolean exclusive = false;
+
+	// Cleared when the reader refuses a transparent exchange, see
+	// sendBatch(). The transparent session is open on the reader while
+	// transparentSession is set; only the thread that uses the card
+	// changes it.
+	private volatile boolean transparentExchange = true;
+	private boolean transparentSession = false;
+
+	// Manage Session APDUs that start and end a transparent session.
+	private static final byte[] startTransparentSession = new byte[] {
+			(byte) 0xFF, (byte) 0xC2, 0x00, 0x00, 0x02, (byte) 0x81, 0x00, 0x00 };
+	private static final byte[] endTransparentSession = new byte[] {
+			(byte) 0xFF, (byte) 0xC2, 0x00, 0x00, 0x02, (byte) 0x82, 0x00, 0x00 };
+
+	// Ultralight commands in one transparent exchange. Keeps the command
+	// and the response within short APDU limits.
+	private static final int MAX_BATCH = 12;
+
+	// Statistics.
+	private final AtomicLong apduCount = new AtomicLong();
+	private final AtomicLong apduNanos = new AtomicLong();
+	private final AtomicLong sessionCount = new AtomicLong();
+	private final AtomicLong sessionNanos = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong expiredSessions = new AtomicLong();
+
 	/**
 	 * Constructor for the CardReader class.
 	 * 
@@ -91,6 +147,9 @@ public class CardReader {
 			throw new CardException("Bug: must initialize reader before card.");
 		card = null;
 		channel = null;
+		cardGeneration++;
+		transparentSession = false;
+		sessionExpired = false;
 		try {
 			userMessage("Waiting for MIFARE Ultralight card... ");
 			terminal.waitForCardPresent(10000);
@@ -106,6 +165,16 @@ public class CardReader {
 			return false;
 		}
 
+		if (isUltralight()) {
+			userMessage("It is an Ultralight card.");
+			return true;
+		} else {
+			userMessage("Unrecognized ATR. Not an Ultralight card.");
+			return false;
+		}
+	}
+
+	private boolean isUltralight() {
 		byte[] atr = card.getATR().getBytes();
 		boolean goodAtr = true;
 		if (atr.length != ultralightAtr.length)
@@ -113,15 +182,174 @@ public class CardReader {
 		else
 			for (int i = 0; i < atr.length; i++)
 				if (atr[i] != ultralightAtr[i]) goodAtr = false;
-		if (goodAtr) {
-			userMessage("It is an Ultralight card.");
+		return goodAtr;
+	}
+
+	// Wait until a card is on the reader. Returns false on timeout.
+	public boolean waitForCard(long timeoutMillis) throws CardException {
+		if (terminal == null)
+			throw new CardException("Bug: must initialize reader before card.");
+		return terminal.waitForCardPresent(timeoutMillis);
+	}
+
+	/**
+	 * Start an exclusive session for one ticket operation. While it lasts,
+	 * no other program or thread can send commands to the card, and the
+	 * APDUs do not go through PC/SC arbitration one by one.
+	 * 
+	 * The connection is kept between sessions. If the card on the reader
+	 * has changed since the last session, the reader connects to the new
+	 * card here without a reset of the old one, so a gate can call this for
+	 * every tap instead of initCard().
+	 * 
+	 * A session that lasts longer than the maximum session time is expired
+	 * by a watchdog: the owner thread is interrupted, and its next APDU
+	 * releases the card and fails, as do all its APDUs until endSession().
+	 * Only the owner thread can end a PC/SC transaction, so always call
+	 * endSession() in a finally block. An owner that hangs without sending
+	 * an APDU or waiting interruptibly keeps the card until it returns;
+	 * the watchdog cannot release it from another thread. If the process
+	 * dies, PC/SC ends the transaction itself.
+	 * 
+	 * @return Returns true if the session started. Then endSession() must
+	 *         be called.
+	 */
+	public boolean beginSession() throws CardException {
+		if (terminal == null)
+			throw new CardException("Bug: must initialize reader before card.");
+		synchronized (this) {
+			if (sessionOwner != null)
+				throw new CardException("Bug: a session is already active.");
+		}
+		if (card == null || !beginExclusive()) {
+			// No connection yet, or the card has been removed or reset.
+			if (!reconnect() || !beginExclusive()) return false;
+		}
+		exclusive = true;
+		synchronized (this) {
+			final Thread owner = Thread.currentThread();
+			sessionOwner = owner;
+			sessionExpired = false;
+			sessionStart = System.nanoTime();
+			sessionTimer = watchdog.schedule(new Runnable() {
+				public void run() {
+					expireSession(owner);
+				}
+			}, maxSessionMillis, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	// End the session started by this thread, if any.
+	public void endSession() {
+		synchronized (this) {
+			if (sessionOwner != Thread.currentThread()) return;
+			sessionTimer.cancel(false);
+			sessionOwner = null;
+			sessionCount.incrementAndGet();
+			sessionNanos.addAndGet(System.nanoTime() - sessionStart);
+			// Clear the interrupt of the watchdog.
+			if (sessionExpired) Thread.interrupted();
+			sessionExpired = false;
+		}
+		if (transparentSession) endTransparentSession();
+		releaseCard();
+	}
+
+	// End the transaction of the session, if it still has the card.
+	private void releaseCard() {
+		if (!exclusive) return;
+		exclusive = false;
+		try {
+			card.endExclusive();
+		} catch (CardException e) {
+			// The card is gone, which ends the transaction too.
+		} catch (IllegalStateException e) {
+			// Disconnected.
+		}
+	}
+
+	private synchronized void expireSession(Thread owner) {
+		if (sessionOwner != owner) return;
+		sessionExpired = true;
+		expiredSessions.incrementAndGet();
+		owner.interrupt();
+	}
+
+	// Longest allowed session before the watchdog expires it.
+	public void setMaxSessionTime(long millis) {
+		maxSessionMillis = millis;
+	}
+
+	private boolean beginExclusive() {
+		try {
+			card.beginExclusive();
 			return true;
-		} else {
-			userMessage("Unrecognized ATR. Not an Ultralight card.");
+		} catch (CardException e) {
 			return false;
+		} catch (IllegalStateException e) {
+			return false; // Disconnected.
 		}
 	}
 
+	// Connect to the card on the reader, leaving the old card as it is.
+	private boolean reconnect() {
+		if (card != null) {
+			try {
+				card.disconnect(false);
+			} catch (Exception e) {
+				// Already gone.
+			}
+		}
+		card = null;
+		channel = null;
+		cardGeneration++;
+		transparentSession = false;
+		reconnects.incrementAndGet();
+		try {
+			if (!terminal.isCardPresent()) return false;
+			card = terminal.connect("T=1");
+			channel = card.getBasicChannel();
+		} catch (Exception e) {
+			userMessage("Unable to connect to the card: " + e.toString());
+			return false;
+		}
+		if (isUltralight()) return true;
+		userMessage("Unrecognized ATR. Not an Ultralight card.");
+		return false;
+	}
+
+	public long getApduCount() {
+		return apduCount.get();
+	}
+
+	// Total time of all APDU round trips.
+	public long getApduNanos() {
+		return apduNanos.get();
+	}
+
+	public long getSessionCount() {
+		return sessionCount.get();
+	}
+
+	public long getSessionNanos() {
+		return sessionNanos.get();
+	}
+
+	// Connections made by beginSession().
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public long getExpiredSessions() {
+		return expiredSessions.get();
+	}
+
+	// Changes whenever initCard() is called.
+	public int getCardGeneration() {
+		return cardGeneration;
+	}
+
 	protected boolean readCommand(int adr, byte[] dstBuffer, int dstPos)
 			throws CardException {
 		if (channel == null)
@@ -172,9 +400,240 @@ public class CardReader {
 		return checkResponse(resApdu, 2);
 	}
 
+	/**
+	 * Send the commands of a batch to the card. If the reader supports the
+	 * PC/SC part 3 transparent exchange (FF C2 00 01), up to twelve raw
+	 * Ultralight commands go in one reader APDU, each in a transceive data
+	 * object. The transparent session that the exchange needs is started
+	 * first (FF C2 00 00 with 81 00). It is kept until endSession() inside
+	 * an exclusive session, and ended after the batch otherwise.
+	 * 
+	 * If the reader answers the Manage Session or exchange APDU with
+	 * "function not supported", "instruction not supported" or "class not
+	 * supported" (6A 81, 6D 00, 6E 00), this and all later batches are sent
+	 * as single storage card APDUs like in readCommand() and writeCommand().
+	 * Any other error fails the commands of that exchange only.
+	 * 
+	 * Each command gets its own status through checkResponse(). A command
+	 * that fails in an exchange ends it, and the commands after it in the
+	 * same exchange fail too.
+	 * 
+	 * @return Returns true if all commands succeeded.
+	 */
+	public boolean sendBatch(CommandBatch batch) throws CardException {
+		if (channel == null)
+			throw new CardException(
+					"Bug: must initialize card before sending commands.");
+		boolean status = true;
+		for (int first = 0; first < batch.size(); first += MAX_BATCH) {
+			int count = Math.min(MAX_BATCH, batch.size() - first);
+			if (!transparentExchange || !exchange(batch, first, count))
+				for (int i = first; i < first + count; i++)
+					batch.status[i] = sendCommand(batch, i);
+			for (int i = first; i < first + count; i++)
+				status &= batch.status[i];
+		}
+		// Outside an exclusive session another program may use the reader
+		// next.
+		if (transparentSession && !exclusive) endTransparentSession();
+		return status;
+	}
+
+	// Send one command of a batch as storage card APDUs. A four-page read
+	// reads the pages it needs one by one.
+	private boolean sendCommand(CommandBatch batch, int i)
+			throws CardException {
+		if (batch.writes[i])
+			return writeCommand(batch.pages[i], batch.buffers[i],
+					batch.positions[i]);
+		if (batch.masks[i] == 0)
+			return readCommand(batch.pages[i], batch.buffers[i],
+					batch.positions[i]);
+		boolean status = true;
+		for (int k = 0; k < 4; k++)
+			if ((batch.masks[i] & (1 << k)) != 0)
+				status &= readCommand((batch.pages[i] + k) % 16,
+						batch.buffers[i], batch.positions[i] + 4 * k);
+		return status;
+	}
+
+	// Use transparent exchanges in sendBatch(). Enabled by default.
+	public void setTransparentExchange(boolean enabled) {
+		transparentExchange = enabled;
+	}
+
+	public boolean isTransparentExchange() {
+		return transparentExchange;
+	}
+
+	// Send count commands of the batch in one transparent exchange. Returns
+	// false if the reader does not support it.
+	private boolean exchange(CommandBatch batch, int first, int count)
+			throws CardException {
+		if (!transparentSession) {
+			byte[] resApdu = sendApdu(startTransparentSession);
+			if (isUnsupported(resApdu)) return refuseExchange();
+			byte[] error = parseExchange(resApdu, null);
+			if (error == null || error[1] != (byte) 0x90 || error[2] != 0x00) {
+				failExchange(batch, first, count, resApdu);
+				return true;
+			}
+			transparentSession = true;
+		}
+
+		// Transceive data objects (tag 0x95) with the raw READ (0x30) and
+		// WRITE (0xA2) commands. The reader adds and checks the CRC.
+		byte[] cmdApdu = new byte[5 + 8 * count + 1];
+		cmdApdu[0] = (byte) 0xFF;
+		cmdApdu[1] = (byte) 0xC2;
+		cmdApdu[2] = (byte) 0x00;
+		cmdApdu[3] = (byte) 0x01; // Transparent exchange.
+		int length = 5;
+		for (int i = first; i < first + count; i++) {
+			cmdApdu[length++] = (byte) 0x95;
+			cmdApdu[length++] = (byte) (batch.writes[i] ? 6 : 2);
+			cmdApdu[length++] = (byte) (batch.writes[i] ? 0xA2 : 0x30);
+			cmdApdu[length++] = (byte) batch.pages[i];
+			if (batch.writes[i]) {
+				System.arraycopy(batch.buffers[i], batch.positions[i], cmdApdu,
+						length, 4);
+				length += 4;
+			}
+		}
+		cmdApdu[4] = (byte) (length - 5);
+		cmdApdu[length++] = (byte) 0x00; // Le
+		cmdApdu = Arrays.copyOf(cmdApdu, length);
+
+		byte[] resApdu = sendApdu(cmdApdu);
+		if (isUnsupported(resApdu)) return refuseExchange();
+		List<byte[]> responses = new ArrayList<byte[]>();
+		byte[] error = parseExchange(resApdu, responses);
+		if (error == null) {
+			failExchange(batch, first, count, resApdu);
+			return true;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int index = first + i;
+			int mask = batch.masks[index];
+			// Turn the card's answer into a storage card response, so that
+			// errors are reported like for single commands.
+			byte[] res;
+			if (i < responses.size()) {
+				byte[] answer = responses.get(i);
+				if (batch.writes[index])
+					// 4-bit ACK (0xA) or NAK.
+					res = answer.length == 1 && (answer[0] & 0x0F) == 0x0A ? new byte[] {
+							(byte) 0x90, 0x00 }
+							: new byte[] { (byte) 0x69, (byte) 0x86 };
+				else if (answer.length == 16) {
+					// READ returns four pages; the first one was asked for,
+					// or all of them for a four-page read.
+					res = Arrays.copyOf(answer, mask == 0 ? 6 : 18);
+					res[res.length - 2] = (byte) 0x90;
+					res[res.length - 1] = 0x00;
+				} else
+					res = new byte[] { (byte) 0x6A, (byte) 0x82 };
+			} else if (error[1] == (byte) 0x90 && error[2] == 0x00)
+				res = new byte[] { 0x64, 0x00 };
+			else
+				res = new byte[] { error[1], error[2] };
+			batch.status[index] = checkResponse(res, batch.writes[index] ? 2
+					: mask == 0 ? 6 : 18);
+			if (batch.status[index] && !batch.writes[index])
+				for (int k = 0; k < 4; k++)
+					if (k == 0 && mask == 0 || (mask & (1 << k)) != 0)
+						System.arraycopy(res, 4 * k, batch.buffers[index],
+								batch.positions[index] + 4 * k, 4);
+		}
+		return true;
+	}
+
+	// True if the reader answered that it does not support the APDU.
+	private static boolean isUnsupported(byte[] resApdu) {
+		if (resApdu == null || resApdu.length < 2) return false;
+		int sw = ((resApdu[resApdu.length - 2] & 0xFF) << 8)
+				| (resApdu[resApdu.length - 1] & 0xFF);
+		return sw == 0x6A81 || sw == 0x6D00 || sw == 0x6E00;
+	}
+
+	private boolean refuseExchange() {
+		userMessage("Reader does not support transparent exchange. Sending single commands.");
+		transparentExchange = false;
+		transparentSession = false;
+		return false;
+	}
+
+	// Fail the commands of an exchange that the reader did not carry out,
+	// and end the transparent session, which may be in any state now.
+	private void failExchange(CommandBatch batch, int first, int count,
+			byte[] resApdu) {
+		if (resApdu != null && checkResponse(resApdu, resApdu.length))
+			userMessage("Reader response to transparent exchange is not normal.");
+		for (int i = first; i < first + count; i++)
+			batch.status[i] = false;
+		endTransparentSession();
+	}
+
+	private void endTransparentSession() {
+		transparentSession = false;
+		try {
+			sendApdu(endTransparentSession);
+		} catch (CardException e) {
+			// The reader ends the session when the card goes.
+		}
+	}
+
+	/**
+	 * Parse the response to a transparent exchange or Manage Session APDU.
+	 * It has a generic error status object C0 03 with the number of the
+	 * failed data object (0 if none) and its status word, and, for an
+	 * exchange, a response object (tag 0x97) for each command that the card
+	 * answered.
+	 * 
+	 * @param responses
+	 *            The values of the response objects are added here, unless
+	 *            null.
+	 * @return Returns the value of the error status object, or null if the
+	 *         status is not 90 00, the data objects cannot be parsed or
+	 *         there is no error status.
+	 */
+	static byte[] parseExchange(byte[] resApdu, List<byte[]> responses) {
+		if (resApdu == null) return null;
+		int end = resApdu.length - 2;
+		if (end < 0 || resApdu[end] != (byte) 0x90 || resApdu[end + 1] != 0x00)
+			return null;
+		byte[] error = null;
+		for (int pos = 0; pos < end;) {
+			if (pos + 2 > end) return null;
+			int tag = resApdu[pos] & 0xFF;
+			int objectLength = resApdu[pos + 1] & 0xFF;
+			pos += 2;
+			if (objectLength == 0x81 && pos < end)
+				objectLength = resApdu[pos++] & 0xFF;
+			if (pos + objectLength > end) return null;
+			byte[] value = Arrays.copyOfRange(resApdu, pos, pos + objectLength);
+			if (tag == 0xC0 && objectLength == 3)
+				error = value;
+			else if (tag == 0x97 && responses != null)
+				responses.add(value);
+			pos += objectLength;
+		}
+		return error;
+	}
+
 	protected byte[] sendApdu(byte[] cmdApdu) throws CardException {
+		if (sessionExpired) {
+			// The watchdog expired the session. Release the card and fail
+			// the rest of the operation.
+			if (exclusive)
+				userMessage("Card session took too long and was ended.");
+			releaseCard();
+			return null;
+		}
 		printApdu("==> ", cmdApdu);
 		byte[] resApdu;
+		long start = System.nanoTime();
 		try {
 			// Actually send the APDU to the card.
 			javax.smartcardio.CommandAPDU cmdApduObject = new javax.smartcardio.CommandAPDU(
@@ -185,6 +644,9 @@ public class CardReader {
 		} catch (Exception e) {
 			userMessage("Sending command to the card failed: " + e.toString());
 			return null;
+		} finally {
+			apduCount.incrementAndGet();
+			apduNanos.addAndGet(System.nanoTime() - start);
 		}
 		printApdu("<== ", resApdu);
 		return resApdu;
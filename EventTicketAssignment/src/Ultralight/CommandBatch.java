@@ -0,0 +1,91 @@
+package Ultralight;
+
+/**
+ * Ultralight READ and WRITE commands that CardReader.sendBatch() sends to
+ * the card together, in as few reader APDUs as possible. Each command has
+ * its own status. The commands are executed in order; after a failed
+ * command the card stops answering, so the rest fail too.
+ */
+public class CommandBatch {
+
+	private static final int INITIAL_SIZE = 4;
+
+	private int size = 0;
+	boolean[] writes = new boolean[INITIAL_SIZE];
+	int[] pages = new int[INITIAL_SIZE];
+	byte[][] buffers = new byte[INITIAL_SIZE][];
+	int[] positions = new int[INITIAL_SIZE];
+	// Pages wanted from a four-page read, see readFour(). 0 for a read of
+	// one page or a write.
+	int[] masks = new int[INITIAL_SIZE];
+	boolean[] status = new boolean[INITIAL_SIZE];
+
+	// Add a read of one page into dstBuffer at dstPos. Returns the index
+	// of the command.
+	public int read(int adr, byte[] dstBuffer, int dstPos) {
+		return add(false, adr, dstBuffer, dstPos, 0);
+	}
+
+	// Add a read of the four pages from adr on, wrapping around after page
+	// 15 like the Ultralight READ command, into 16 bytes of dstBuffer at
+	// dstPos. Bit i of mask is set if page adr + i is needed: only those
+	// pages are copied, and only they are read if the reader has to read
+	// page by page. Returns the index of the command.
+	public int readFour(int adr, int mask, byte[] dstBuffer, int dstPos) {
+		if (mask <= 0 || mask > 0xF)
+			throw new IllegalArgumentException("Bad page mask: " + mask);
+		return add(false, adr, dstBuffer, dstPos, mask);
+	}
+
+	// Add a write of 4 bytes from srcBuffer at srcPos to a page. The bytes
+	// are copied when the batch is sent.
+	public int write(int adr, byte[] srcBuffer, int srcPos) {
+		return add(true, adr, srcBuffer, srcPos, 0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isWrite(int index) {
+		return writes[index];
+	}
+
+	public int getPage(int index) {
+		return pages[index];
+	}
+
+	// Pages wanted from a four-page read, 0 for other commands.
+	public int getMask(int index) {
+		return masks[index];
+	}
+
+	// True if the command succeeded in the last sendBatch().
+	public boolean getStatus(int index) {
+		return status[index];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	private int add(boolean write, int adr, byte[] buffer, int pos, int mask) {
+		if (size == pages.length) {
+			int length = 2 * size;
+			writes = java.util.Arrays.copyOf(writes, length);
+			pages = java.util.Arrays.copyOf(pages, length);
+			buffers = java.util.Arrays.copyOf(buffers, length);
+			positions = java.util.Arrays.copyOf(positions, length);
+			masks = java.util.Arrays.copyOf(masks, length);
+			status = java.util.Arrays.copyOf(status, length);
+		}
+		writes[size] = write;
+		pages[size] = adr;
+		buffers[size] = buffer;
+		positions[size] = pos;
+		masks[size] = mask;
+		status[size] = false;
+		return size++;
+	}
+
+}
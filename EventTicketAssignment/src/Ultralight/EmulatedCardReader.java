@@ -0,0 +1,29 @@
+package Ultralight;
+
+/**
+ * CardReader that talks to an EmulatedTerminal instead of a PC/SC reader.
+ * Everything from initCard() upwards, including the APDU encoding, is the
+ * same code as with a real reader.
+ */
+public class EmulatedCardReader extends CardReader {
+
+	protected EmulatedTerminal emulatedTerminal;
+
+	public EmulatedCardReader(EmulatedTerminal terminal,
+			java.io.PrintStream msgOut, java.io.PrintStream apduOut) {
+		super(msgOut, apduOut);
+		this.emulatedTerminal = terminal;
+	}
+
+	public EmulatedTerminal getTerminal() {
+		return emulatedTerminal;
+	}
+
+	@Override
+	public boolean initReader() {
+		terminal = emulatedTerminal;
+		userMessage("Reader name: " + terminal.getName());
+		return true;
+	}
+
+}
@@ -0,0 +1,456 @@
+package Ultralight;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * In-memory card terminal with one MIFARE Ultralight card. It understands
+ * the same storage token read and write APDUs (FF B0 and FF D6) as the
+ * SCL01x reader, so that CardReader and everything above it can run
+ * without reader hardware, e.g. for load tests and warm-up. It also
+ * understands PC/SC part 3 transparent exchanges (FF C2 00 01) with raw
+ * READ and WRITE commands, unless that is turned off. Like a real reader,
+ * it carries out an exchange only in a transparent session, which is
+ * started and ended with Manage Session (FF C2 00 00 with 81 00 and 82 00)
+ * and also ends when the card is taken away.
+ * 
+ * The card follows the Ultralight write rules: pages 0 and 1 are read-only,
+ * writes to the lock bytes of page 2 and to the OTP page 3 are OR'ed to the
+ * old value, and a page whose lock bit is set cannot be written. The block
+ * locking bits are not emulated.
+ * 
+ * PC/SC arbitration is emulated too: outside an exclusive session every
+ * APDU pays the arbitration latency, and inside one only beginExclusive()
+ * does. While a connection holds the card exclusively, APDUs of other
+ * connections wait. beginExclusive() fails if a different card has been
+ * inserted since the connection was made, like a PC/SC transaction on a
+ * removed or reset card.
+ */
+public class EmulatedTerminal extends CardTerminal {
+
+	protected static final byte[] ultralightAtr = new byte[] { (byte) 0x3B,
+			(byte) 0x8F, (byte) 0x80, (byte) 0x01, (byte) 0x80, (byte) 0x4F,
+			(byte) 0x0C, (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03,
+			(byte) 0x06, (byte) 0x03, (byte) 0x00, (byte) 0x03, (byte) 0x00,
+			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x68 };
+
+	private final String name;
+	private byte[] memory = null; // Null when there is no card.
+	private volatile long apduLatencyNanos = 0;
+	private volatile long arbitrationLatencyNanos = 0;
+	private volatile long commandLatencyNanos = 0;
+	private volatile boolean transparentExchange = true;
+	private boolean transparentSession = false;
+	private long apduCount = 0;
+	private EmulatedCard exclusiveOwner = null;
+
+	public EmulatedTerminal(String name) {
+		this.name = name;
+	}
+
+	// Memory image of a blank card with the given 7-byte serial number
+	// (the low 56 bits of uid). Pages 0..2 contain the serial number and
+	// its check bytes; everything else is zero.
+	public static byte[] blankCard(long uid) {
+		byte[] sn = new byte[7];
+		for (int i = 0; i < 7; i++)
+			sn[i] = (byte) (uid >> (8 * (6 - i)));
+		byte[] image = new byte[64];
+		image[0] = sn[0];
+		image[1] = sn[1];
+		image[2] = sn[2];
+		image[3] = (byte) (0x88 ^ sn[0] ^ sn[1] ^ sn[2]); // BCC0
+		image[4] = sn[3];
+		image[5] = sn[4];
+		image[6] = sn[5];
+		image[7] = sn[6];
+		image[8] = (byte) (sn[3] ^ sn[4] ^ sn[5] ^ sn[6]); // BCC1
+		image[9] = (byte) 0x48; // Internal byte.
+		return image;
+	}
+
+	// Put a card with the given memory image on the reader. The terminal
+	// works directly on the array, so the caller sees all writes.
+	public synchronized void insertCard(byte[] image) {
+		if (image == null || image.length != 64)
+			throw new IllegalArgumentException("Card image must be 64 bytes.");
+		memory = image;
+		transparentSession = false;
+		notifyAll();
+	}
+
+	public synchronized void removeCard() {
+		memory = null;
+		transparentSession = false;
+		notifyAll();
+	}
+
+	// Memory image of the card currently on the reader, or null.
+	public synchronized byte[] getMemory() {
+		return memory;
+	}
+
+	// Simulated time for one APDU round trip through the reader and card.
+	public void setApduLatency(long nanos) {
+		apduLatencyNanos = nanos;
+	}
+
+	// Simulated time for the reader service to grant the card to a
+	// connection.
+	public void setArbitrationLatency(long nanos) {
+		arbitrationLatencyNanos = nanos;
+	}
+
+	// Simulated time for each card command after the first in a transparent
+	// exchange.
+	public void setCommandLatency(long nanos) {
+		commandLatencyNanos = nanos;
+	}
+
+	// Emulate a reader without transparent exchange, which answers it with
+	// "function not supported".
+	public void setTransparentExchange(boolean supported) {
+		transparentExchange = supported;
+	}
+
+	public synchronized long getApduCount() {
+		return apduCount;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Card connect(String protocol) throws CardException {
+		synchronized (this) {
+			if (memory == null)
+				throw new CardNotPresentException("No card on " + name + ".");
+		}
+		return new EmulatedCard(protocol, memory);
+	}
+
+	@Override
+	public synchronized boolean isCardPresent() {
+		return memory != null;
+	}
+
+	@Override
+	public synchronized boolean waitForCardPresent(long timeout)
+			throws CardException {
+		return waitFor(true, timeout);
+	}
+
+	@Override
+	public synchronized boolean waitForCardAbsent(long timeout)
+			throws CardException {
+		return waitFor(false, timeout);
+	}
+
+	private boolean waitFor(boolean present, long timeout) throws CardException {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while ((memory != null) != present) {
+				if (timeout == 0)
+					wait();
+				else {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) return false;
+					wait(left);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new CardException("Interrupted while waiting for card.");
+		}
+		return true;
+	}
+
+	// Wait until no other connection holds the card. Outside a session the
+	// card has to be granted for this one APDU.
+	private void arbitrate(EmulatedCard card) throws CardException {
+		synchronized (this) {
+			try {
+				while (exclusiveOwner != null && exclusiveOwner != card)
+					wait();
+			} catch (InterruptedException e) {
+				throw new CardException("Interrupted while waiting for card.");
+			}
+			if (exclusiveOwner == card) return;
+		}
+		if (arbitrationLatencyNanos > 0)
+			LockSupport.parkNanos(arbitrationLatencyNanos);
+	}
+
+	private void beginExclusive(EmulatedCard card) throws CardException {
+		synchronized (this) {
+			try {
+				while (exclusiveOwner != null && exclusiveOwner != card)
+					wait();
+			} catch (InterruptedException e) {
+				throw new CardException("Interrupted while waiting for card.");
+			}
+			if (memory == null || memory != card.image)
+				throw new CardException("Card has been removed or reset.");
+			exclusiveOwner = card;
+		}
+		if (arbitrationLatencyNanos > 0)
+			LockSupport.parkNanos(arbitrationLatencyNanos);
+	}
+
+	private synchronized void endExclusive(EmulatedCard card) {
+		if (exclusiveOwner == card) {
+			exclusiveOwner = null;
+			notifyAll();
+		}
+	}
+
+	// Execute one reader APDU against the card memory.
+	protected byte[] execute(byte[] cmd) throws CardException {
+		if (apduLatencyNanos > 0) LockSupport.parkNanos(apduLatencyNanos);
+		if (cmd.length >= 5 && cmd[0] == (byte) 0xFF && cmd[1] == (byte) 0xC2)
+			return exchange(cmd);
+		synchronized (this) {
+			if (memory == null)
+				throw new CardNotPresentException("Card removed from " + name + ".");
+			apduCount++;
+			if (cmd.length < 5 || cmd[0] != (byte) 0xFF || cmd[2] != 0)
+				return status(0x6E, 0x00);
+			int page = cmd[3] & 0xFF;
+			if (cmd[1] == (byte) 0xB0) {
+				if (cmd.length != 5 || cmd[4] != 4) return status(0x67, 0x00);
+				if (page > 15) return status(0x6A, 0x82);
+				byte[] res = new byte[6];
+				System.arraycopy(memory, page * 4, res, 0, 4);
+				res[4] = (byte) 0x90;
+				return res;
+			}
+			if (cmd[1] == (byte) 0xD6) {
+				if (cmd.length != 9 || cmd[4] != 4) return status(0x67, 0x00);
+				if (page > 15) return status(0x6A, 0x82);
+				if (!writePage(page, cmd, 5)) return status(0x69, 0x86);
+				return status(0x90, 0x00);
+			}
+			return status(0x6A, 0x81);
+		}
+	}
+
+	// Transparent exchange of raw card commands in transceive data objects.
+	// The card stops answering after a NAK, like a real card that goes to
+	// the idle state.
+	private byte[] exchange(byte[] cmd) throws CardException {
+		byte[] res = new byte[256];
+		int resLength = 5; // Room for the generic error status.
+		int commands = 0;
+		byte[] error = new byte[] { 0x00, (byte) 0x90, 0x00 };
+		synchronized (this) {
+			if (memory == null)
+				throw new CardNotPresentException("Card removed from " + name + ".");
+			apduCount++;
+			if (!transparentExchange || cmd[2] != 0x00
+					|| (cmd[3] != 0x00 && cmd[3] != 0x01))
+				return status(0x6A, 0x81);
+			int lc = cmd[4] & 0xFF;
+			if (cmd.length < 5 + lc) return status(0x67, 0x00);
+			if (cmd[3] == 0x00) return manageSession(cmd, lc);
+			if (!transparentSession) return status(0x69, 0x85);
+			int object = 0;
+			for (int pos = 5; pos < 5 + lc;) {
+				object++;
+				int tag = cmd[pos] & 0xFF;
+				int length = pos + 1 < 5 + lc ? cmd[pos + 1] & 0xFF : lc;
+				int value = pos + 2;
+				pos = value + length;
+				if (tag != 0x95 || pos > 5 + lc) {
+					error = new byte[] { (byte) object, 0x6A, (byte) 0x81 };
+					break;
+				}
+				if (resLength + 2 + 16 + 2 > res.length) {
+					error = new byte[] { (byte) object, 0x67, 0x00 };
+					break;
+				}
+				commands++;
+				byte[] answer;
+				int page = length >= 2 ? cmd[value + 1] & 0xFF : 0;
+				if (length == 2 && cmd[value] == 0x30 && page <= 15) {
+					// READ returns four pages and wraps around to page 0.
+					answer = new byte[16];
+					for (int i = 0; i < 16; i++)
+						answer[i] = memory[(page * 4 + i) % 64];
+				} else if (length == 6 && cmd[value] == (byte) 0xA2
+						&& page <= 15 && writePage(page, cmd, value + 2))
+					answer = new byte[] { 0x0A };
+				else
+					answer = new byte[] { 0x00 }; // NAK
+				res[resLength++] = (byte) 0x97;
+				res[resLength++] = (byte) answer.length;
+				System.arraycopy(answer, 0, res, resLength, answer.length);
+				resLength += answer.length;
+				if (answer.length == 1 && answer[0] != 0x0A) {
+					// The card does not answer the next commands.
+					if (pos < 5 + lc)
+						error = new byte[] { (byte) (object + 1), 0x64, 0x01 };
+					break;
+				}
+			}
+		}
+		if (commands > 1 && commandLatencyNanos > 0)
+			LockSupport.parkNanos((commands - 1) * commandLatencyNanos);
+		res[0] = (byte) 0xC0;
+		res[1] = 0x03;
+		System.arraycopy(error, 0, res, 2, 3);
+		res[resLength++] = (byte) 0x90;
+		res[resLength++] = 0x00;
+		return java.util.Arrays.copyOf(res, resLength);
+	}
+
+	// Start or end the transparent session. Only the start and end session
+	// data objects are understood.
+	private byte[] manageSession(byte[] cmd, int lc) {
+		byte[] error = new byte[] { 0x00, (byte) 0x90, 0x00 };
+		if (lc == 2 && cmd[5] == (byte) 0x81 && cmd[6] == 0x00)
+			transparentSession = true;
+		else if (lc == 2 && cmd[5] == (byte) 0x82 && cmd[6] == 0x00)
+			transparentSession = false;
+		else
+			error = new byte[] { 0x01, 0x6A, (byte) 0x81 };
+		return new byte[] { (byte) 0xC0, 0x03, error[0], error[1], error[2],
+				(byte) 0x90, 0x00 };
+	}
+
+	// Ultralight WRITE semantics. Returns false if the card would NAK.
+	private boolean writePage(int page, byte[] src, int srcPos) {
+		if (page < 2) return false;
+		if (page == 2) {
+			memory[10] |= src[srcPos + 2];
+			memory[11] |= src[srcPos + 3];
+			return true;
+		}
+		if (isLocked(page)) return false;
+		if (page == 3) {
+			for (int i = 0; i < 4; i++)
+				memory[12 + i] |= src[srcPos + i];
+			return true;
+		}
+		System.arraycopy(src, srcPos, memory, page * 4, 4);
+		return true;
+	}
+
+	private boolean isLocked(int page) {
+		int lockBits = (memory[10] & 0xFF) | ((memory[11] & 0xFF) << 8);
+		return (lockBits & (1 << page)) != 0;
+	}
+
+	private static byte[] status(int sw1, int sw2) {
+		return new byte[] { (byte) sw1, (byte) sw2 };
+	}
+
+	private class EmulatedCard extends Card {
+
+		private final String protocol;
+		private final byte[] image; // The card that was connected.
+		private final CardChannel channel = new EmulatedChannel(this);
+		private volatile boolean connected = true;
+
+		EmulatedCard(String protocol, byte[] image) {
+			this.protocol = protocol;
+			this.image = image;
+		}
+
+		@Override
+		public ATR getATR() {
+			return new ATR(ultralightAtr);
+		}
+
+		@Override
+		public String getProtocol() {
+			return protocol;
+		}
+
+		@Override
+		public CardChannel getBasicChannel() {
+			return channel;
+		}
+
+		@Override
+		public CardChannel openLogicalChannel() throws CardException {
+			throw new CardException("Logical channels are not supported.");
+		}
+
+		@Override
+		public void beginExclusive() throws CardException {
+			if (!connected)
+				throw new IllegalStateException("Card has been disconnected.");
+			EmulatedTerminal.this.beginExclusive(this);
+		}
+
+		@Override
+		public void endExclusive() throws CardException {
+			EmulatedTerminal.this.endExclusive(this);
+		}
+
+		@Override
+		public byte[] transmitControlCommand(int controlCode, byte[] command)
+				throws CardException {
+			throw new CardException("Control commands are not supported.");
+		}
+
+		@Override
+		public void disconnect(boolean reset) throws CardException {
+			connected = false;
+			EmulatedTerminal.this.endExclusive(this);
+		}
+	}
+
+	private class EmulatedChannel extends CardChannel {
+
+		private final EmulatedCard card;
+
+		EmulatedChannel(EmulatedCard card) {
+			this.card = card;
+		}
+
+		@Override
+		public Card getCard() {
+			return card;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			if (!card.connected)
+				throw new IllegalStateException("Card has been disconnected.");
+			arbitrate(card);
+			return new ResponseAPDU(execute(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response)
+				throws CardException {
+			byte[] cmd = new byte[command.remaining()];
+			command.get(cmd);
+			arbitrate(card);
+			byte[] res = execute(cmd);
+			response.put(res);
+			return res.length;
+		}
+
+		@Override
+		public void close() throws CardException {
+			throw new IllegalStateException("Cannot close the basic channel.");
+		}
+	}
+
+}
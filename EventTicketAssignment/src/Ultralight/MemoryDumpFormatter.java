@@ -0,0 +1,191 @@
+package Ultralight;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Renders 64-byte card memory images as text. The whole dump is built into
+ * one reusable byte buffer from lookup tables and written to the output
+ * with a single write call.
+ *
+ * Formats:
+ *   TABLE  the page/hex/ASCII/binary table of printMemory()
+ *   JSON   one line per image: {"uid":"...","pages":["...", ...]}
+ *   CSV    one line per image: uid and the 16 pages in hex
+ *
+ * The JSON and CSV lines are meant for batch tooling that processes many
+ * dumps. An instance is not thread-safe because of the shared buffer.
+ */
+public class MemoryDumpFormatter {
+
+	public enum Format {
+		TABLE, JSON, CSV
+	}
+
+	private static final byte[] lineSeparator = System.getProperty(
+			"line.separator").getBytes();
+	private static final byte[] tableHeader = ascii("\n\nCard memory dump:",
+			"Page Hexadecimal    ASCII   Binary",
+			"---------------------------------------------------------------");
+	private static final byte[] tableFooter = ascii(
+			"---------------------------------------------------------------", "");
+	private static final byte[] csvHeader;
+
+	// Two hex digits, one printable character and eight binary digits for
+	// each byte value.
+	private static final byte[] hexTable = new byte[256 * 2];
+	private static final byte[] asciiTable = new byte[256];
+	private static final byte[] binaryTable = new byte[256 * 8];
+
+	static {
+		byte[] digits = "0123456789ABCDEF".getBytes();
+		for (int b = 0; b < 256; b++) {
+			hexTable[2 * b] = digits[b >> 4];
+			hexTable[2 * b + 1] = digits[b & 0xF];
+			char c = (char) (byte) b;
+			asciiTable[b] = (Character.isISOControl(c) || c >= 128) ? (byte) '.'
+					: (byte) c;
+			for (int k = 0; k < 8; k++)
+				binaryTable[8 * b + k] = (byte) (((b >> (7 - k)) & 1) == 0 ? '0' : '1');
+		}
+		StringBuilder header = new StringBuilder("uid");
+		for (int i = 0; i < 16; i++)
+			header.append(String.format(",page%02d", i));
+		csvHeader = ascii(header.toString());
+	}
+
+	private static byte[] ascii(String... lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines)
+			text.append(line).append(System.getProperty("line.separator"));
+		return text.toString().getBytes();
+	}
+
+	// Large enough for the table format, which is the longest.
+	private final byte[] buffer = new byte[tableHeader.length + 16
+			* (5 + 12 + 3 + 4 + 4 + 36 + lineSeparator.length) + tableFooter.length];
+	private int length;
+
+	/**
+	 * Render one memory image and write it to the output in one call.
+	 *
+	 * @param out
+	 *            Output stream, e.g. System.out.
+	 * @param memory
+	 *            64-byte card memory image.
+	 * @param format
+	 *            Output format.
+	 */
+	public void write(OutputStream out, byte[] memory, Format format)
+			throws IOException {
+		render(memory, format);
+		out.write(buffer, 0, length);
+	}
+
+	// Write the column names line for the CSV format.
+	public void writeCsvHeader(OutputStream out) throws IOException {
+		out.write(csvHeader);
+	}
+
+	private void render(byte[] memory, Format format) {
+		if (memory == null || memory.length < 64)
+			throw new IllegalArgumentException("Card image must be 64 bytes.");
+		length = 0;
+		switch (format) {
+		case TABLE:
+			renderTable(memory);
+			break;
+		case JSON:
+			renderJson(memory);
+			break;
+		case CSV:
+			renderCsv(memory);
+			break;
+		}
+	}
+
+	private void renderTable(byte[] memory) {
+		put(tableHeader);
+		for (int i = 0; i < 16; i++) {
+			// Page number
+			buffer[length++] = (byte) ('0' + i / 10);
+			buffer[length++] = (byte) ('0' + i % 10);
+			spaces(3);
+			// Hexadecimal
+			for (int j = 0; j < 4; j++) {
+				hex(memory[4 * i + j]);
+				spaces(1);
+			}
+			spaces(3);
+			// ASCII characters
+			for (int j = 0; j < 4; j++)
+				buffer[length++] = asciiTable[memory[4 * i + j] & 0xFF];
+			spaces(4);
+			// Binary
+			for (int j = 0; j < 4; j++) {
+				System.arraycopy(binaryTable, 8 * (memory[4 * i + j] & 0xFF),
+						buffer, length, 8);
+				length += 8;
+				spaces(1);
+			}
+			put(lineSeparator);
+		}
+		put(tableFooter);
+	}
+
+	private void renderJson(byte[] memory) {
+		putAscii("{\"uid\":\"");
+		uid(memory);
+		putAscii("\",\"pages\":[");
+		for (int i = 0; i < 16; i++) {
+			if (i > 0) buffer[length++] = ',';
+			buffer[length++] = '"';
+			page(memory, i);
+			buffer[length++] = '"';
+		}
+		putAscii("]}");
+		put(lineSeparator);
+	}
+
+	private void renderCsv(byte[] memory) {
+		uid(memory);
+		for (int i = 0; i < 16; i++) {
+			buffer[length++] = ',';
+			page(memory, i);
+		}
+		put(lineSeparator);
+	}
+
+	// The 7-byte UID, see UltralightUtilities.getUid().
+	private void uid(byte[] memory) {
+		for (int i = 0; i < 8; i++)
+			if (i != 3) hex(memory[i]);
+	}
+
+	private void page(byte[] memory, int page) {
+		for (int j = 0; j < 4; j++)
+			hex(memory[4 * page + j]);
+	}
+
+	private void hex(byte b) {
+		buffer[length++] = hexTable[2 * (b & 0xFF)];
+		buffer[length++] = hexTable[2 * (b & 0xFF) + 1];
+	}
+
+	private void spaces(int n) {
+		for (int i = 0; i < n; i++)
+			buffer[length++] = ' ';
+	}
+
+	private void put(byte[] bytes) {
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	// Only for short constant strings. Each char must be ASCII.
+	private void putAscii(String s) {
+		for (int i = 0; i < s.length(); i++)
+			buffer[length++] = (byte) s.charAt(i);
+	}
+
+}
@@ -11,10 +11,24 @@ public class UltralightCommands {
 
 	protected CardReader reader;
 
-	// Set true to ignore writes to page 2 and to emulate page 3 with page 15:
+	// Set true to keep the lock bits of page 2 in memory only and to emulate
+	// page 3 with page 15.
 	// Set false to really write the OTP and lock bits (cannot be reset).
 	public boolean safe = true;
 
+	// Write-through cache of the card pages, see setCaching(). Bit n of
+	// cachedPages is set when page n of cache is valid. In safe mode the
+	// lock page 2 and page 15, which stands for the OTP page, are always
+	// cached: they are the shadow state of the OTP and lock emulation.
+	private boolean caching = false;
+	private final byte[] cache = new byte[16 * 4];
+	private int cachedPages = 0;
+	private int cacheGeneration = 0;
+	// SAFE MODE: lock bytes written to page 2 (bytes 2 and 3) of the card
+	// of cacheGeneration. They are ORed into page 2 whenever it is read, so
+	// they outlast invalidateCache(), and are dropped with the card.
+	private final byte[] emulatedLocks = new byte[2];
+
 	/**
 	 * Constructor for the UltralightCommands class.
 	 * 
@@ -25,6 +39,86 @@ public class UltralightCommands {
 		this.reader = reader;
 	}
 
+	/**
+	 * Keep a copy of every page read from or written to the card, and serve
+	 * reads from it, so that a sequence of operations on one card reads
+	 * each page only once. Writes always go to the card; the copy is
+	 * updated the way the card updates its memory (lock and OTP bits can
+	 * only be set). The copy is dropped when the reader connects to a new
+	 * card and when a write fails.
+	 * 
+	 * Use only while no one else writes to the card.
+	 */
+	public void setCaching(boolean caching) {
+		this.caching = caching;
+		cachedPages = 0;
+	}
+
+	/**
+	 * Drop the copy of the card pages, so that the next reads show what the
+	 * card really has, e.g. for a memory dump.
+	 */
+	public void invalidateCache() {
+		cachedPages = 0;
+	}
+
+	// True if reads of the page are served from the cache.
+	private boolean isCached(int adr) {
+		return caching || (safe && (adr == 2 || adr == 15));
+	}
+
+	// Read a page through the cache.
+	private boolean read(int adr, byte[] dstBuffer, int dstPos)
+			throws CardException {
+		checkGeneration();
+		if (!isCached(adr) || (cachedPages & (1 << adr)) == 0) {
+			if (!reader.readCommand(adr, dstBuffer, dstPos)) return false;
+			updateCache(adr, dstBuffer, dstPos);
+		} else
+			System.arraycopy(cache, 4 * adr, dstBuffer, dstPos, 4);
+		return true;
+	}
+
+	// Write a page and update the cache like the card updates its memory.
+	private boolean write(int adr, byte[] srcBuffer, int srcPos)
+			throws CardException {
+		boolean status = reader.writeCommand(adr, srcBuffer, srcPos);
+		checkGeneration();
+		if (!status)
+			cachedPages &= ~(1 << adr);
+		else if (adr == 2 || adr == 3) {
+			// Bytes 0 and 1 of page 2 are read-only, the lock bytes and
+			// the OTP page are ORed.
+			if ((cachedPages & (1 << adr)) != 0)
+				for (int i = adr == 2 ? 2 : 0; i < 4; i++)
+					cache[4 * adr + i] |= srcBuffer[srcPos + i];
+		} else
+			updateCache(adr, srcBuffer, srcPos);
+		return status;
+	}
+
+	// Store a page as read from the card or written to it. Pages that are
+	// not cached are stored too if an older copy is in the cache, e.g.
+	// page 15 after safe mode has been turned off for erasing.
+	private void updateCache(int adr, byte[] buffer, int pos) {
+		if (safe && adr == 2) {
+			buffer[pos + 2] |= emulatedLocks[0];
+			buffer[pos + 3] |= emulatedLocks[1];
+		}
+		if (!isCached(adr) && (cachedPages & (1 << adr)) == 0) return;
+		System.arraycopy(buffer, pos, cache, 4 * adr, 4);
+		cachedPages |= 1 << adr;
+	}
+
+	private void checkGeneration() {
+		if (reader.getCardGeneration() != cacheGeneration) {
+			cachedPages = 0;
+			cacheGeneration = reader.getCardGeneration();
+			emulatedLocks[0] = 0;
+			emulatedLocks[1] = 0;
+		}
+	}
+
 	protected void checkArgs(int adr, byte[] buffer, int pos)
 			throws CardException {
 
@@ -62,10 +156,10 @@ public class UltralightCommands {
 
 		if (!safe || adr != 3)
 			// Normal read
-			return reader.readCommand(adr, dstBuffer, dstPos);
+			return read(adr, dstBuffer, dstPos);
 
 		// SAFE MODE: page 3 has been mapped to page 15.
-		return reader.readCommand(15, dstBuffer, dstPos);
+		return read(15, dstBuffer, dstPos);
 	}
 
 	/**
@@ -89,21 +183,175 @@ public class UltralightCommands {
 
 		if (!safe || (adr != 2 && adr != 3 && adr != 15))
 			// Normal write
-			return reader.writeCommand(adr, srcBuffer, srcPos);
+			return write(adr, srcBuffer, srcPos);
 
-		// SAFE MODE: prevents setting of locks, maps OTP writes to page 15
-		if (adr == 2 || adr == 15)
-			// Page 2: silently ignore writes to the locks and to page 15.
+		// SAFE MODE: emulates the locks, maps OTP writes to page 15
+		if (adr == 2) {
+			// Page 2: set the lock bits in the shadow only.
+			emulatedLock(srcBuffer, srcPos);
+			return true;
+		} else if (adr == 15)
+			// Silently ignore writes to page 15.
 			return true;
 		else {
 			// Page 3: emulate the one time programmable page with page 15.
+			// Once the lock page and page 15 are in the cache, this is one
+			// write.
 			byte[] page15 = new byte[4];
-			boolean status = reader.readCommand(15, page15, 0);
-			for (int i = 0; i < 4; i++)
-				page15[i] |= srcBuffer[srcPos + i];
-			status |= reader.writeCommand(15, page15, 0);
-			return status;
+			if (!emulatedOtp(srcBuffer, srcPos, page15)) return false;
+			return write(15, page15, 0);
 		}
 	}
+
+	// SAFE MODE: set the lock bits of a write to page 2 in the shadow of
+	// page 2, not on the card. Like on the card, they can only be set.
+	private void emulatedLock(byte[] srcBuffer, int srcPos) {
+		checkGeneration();
+		for (int i = 0; i < 2; i++) {
+			emulatedLocks[i] |= srcBuffer[srcPos + 2 + i];
+			cache[4 * 2 + 2 + i] |= srcBuffer[srcPos + 2 + i];
+		}
+	}
+
+	// SAFE MODE: the new value of page 15 for a write to the OTP page, which
+	// is the old value with the new bits set. Fails like the card would if
+	// the OTP page is locked.
+	private boolean emulatedOtp(byte[] srcBuffer, int srcPos, byte[] page15)
+			throws CardException {
+		byte[] page2 = new byte[4];
+		if (!read(2, page2, 0)) return false;
+		if ((page2[2] & (1 << 3)) != 0) return false; // Lock bit of page 3.
+		if (!read(15, page15, 0)) return false;
+		for (int i = 0; i < 4; i++)
+			page15[i] |= srcBuffer[srcPos + i];
+		return true;
+	}
+
+	/**
+	 * Read consecutive pages. The pages that are not in the cache are read
+	 * from the card together, in one reader APDU if the reader supports
+	 * it (see CardReader.sendBatch()). Each Ultralight READ returns four
+	 * pages, so they are read with as few READs as possible: pages 0..10
+	 * take three.
+	 * 
+	 * @param adr
+	 *            Number of the first page.
+	 * @param count
+	 *            Number of pages.
+	 * @param dstBuffer
+	 *            Destination buffer with room for 4 * count bytes.
+	 * @param dstPos
+	 *            Byte index in the destination buffer of the first page.
+	 * @return Returns true if all pages were read.
+	 */
+	public boolean readPages(int adr, int count, byte[] dstBuffer, int dstPos)
+			throws CardException {
+		checkGeneration();
+		// Bit n is set if card page n has to be read.
+		int missing = 0;
+		for (int i = 0; i < count; i++) {
+			checkArgs(adr + i, dstBuffer, dstPos + 4 * i);
+			// SAFE MODE: page 3 has been mapped to page 15.
+			int page = safe && adr + i == 3 ? 15 : adr + i;
+			if (isCached(page) && (cachedPages & (1 << page)) != 0)
+				System.arraycopy(cache, 4 * page, dstBuffer, dstPos + 4 * i, 4);
+			else
+				missing |= 1 << page;
+		}
+		if (missing == 0) return true;
+
+		int[] starts = readStarts(missing);
+		CommandBatch batch = new CommandBatch();
+		byte[] pages = new byte[16 * starts.length];
+		for (int j = 0; j < starts.length; j++) {
+			int mask = 0;
+			for (int k = 0; k < 4; k++)
+				if ((missing & (1 << ((starts[j] + k) % 16))) != 0) mask |= 1 << k;
+			batch.readFour(starts[j], mask, pages, 16 * j);
+		}
+		boolean status = reader.sendBatch(batch);
+
+		// Copy the pages that were read to the cache and to dstBuffer.
+		byte[] image = new byte[16 * 4];
+		int read = 0;
+		for (int j = 0; j < starts.length; j++) {
+			if (!batch.getStatus(j)) continue;
+			for (int k = 0; k < 4; k++) {
+				int page = (starts[j] + k) % 16;
+				if ((batch.getMask(j) & (1 << k)) == 0) continue;
+				System.arraycopy(pages, 16 * j + 4 * k, image, 4 * page, 4);
+				updateCache(page, image, 4 * page);
+				read |= 1 << page;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			int page = safe && adr + i == 3 ? 15 : adr + i;
+			if ((missing & read & (1 << page)) != 0)
+				System.arraycopy(image, 4 * page, dstBuffer, dstPos + 4 * i, 4);
+		}
+		return status;
+	}
+
+	// First pages of the fewest READs that cover the pages whose bits are
+	// set. A READ returns four pages and wraps around after page 15, so
+	// a greedy cover is tried from each of the pages, e.g. in safe mode
+	// pages 15 and 0..2 take one READ from page 15.
+	static int[] readStarts(int pages) {
+		int[] best = null;
+		int[] starts = new int[16];
+		for (int first = 0; first < 16; first++) {
+			if ((pages & (1 << first)) == 0) continue;
+			int n = 0;
+			int covered = 0;
+			for (int k = 0; k < 16; k++) {
+				if (k < covered || (pages & (1 << ((first + k) % 16))) == 0)
+					continue;
+				starts[n++] = (first + k) % 16;
+				covered = k + 4;
+			}
+			if (best == null || n < best.length)
+				best = java.util.Arrays.copyOf(starts, n);
+		}
+		return best;
+	}
+
+	/**
+	 * Write a page and read it back from the card in the same exchange, to
+	 * check what the card really has. The page is read back even if the
+	 * cache has it. Safe mode is applied to the write like in
+	 * writeBinary(), and the page that stands for it is read back.
+	 * 
+	 * @return Returns true if the write and the read succeeded. The page as
+	 *         read back is in dstBuffer.
+	 */
+	public boolean writeAndReadBack(int adr, byte[] srcBuffer, int srcPos,
+			byte[] dstBuffer, int dstPos) throws CardException {
+		checkArgs(adr, srcBuffer, srcPos);
+		checkArgs(adr, dstBuffer, dstPos);
+		byte[] data = new byte[4];
+		System.arraycopy(srcBuffer, srcPos, data, 0, 4);
+		int page = adr;
+		CommandBatch batch = new CommandBatch();
+		if (!safe || (adr != 2 && adr != 3 && adr != 15))
+			batch.write(adr, data, 0);
+		else if (adr == 3) {
+			// SAFE MODE: emulate the one time programmable page with page 15.
+			page = 15;
+			if (!emulatedOtp(srcBuffer, srcPos, data)) return false;
+			batch.write(15, data, 0);
+		} else if (adr == 2)
+			// SAFE MODE: the lock bits are set in the shadow, which is
+			// ORed into the page read back.
+			emulatedLock(srcBuffer, srcPos);
+		// SAFE MODE: writes to page 15 are ignored.
+		batch.read(page, dstBuffer, dstPos);
+		boolean status = reader.sendBatch(batch);
+		checkGeneration();
+		if (batch.getStatus(batch.size() - 1))
+			updateCache(page, dstBuffer, dstPos);
+		else
+			cachedPages &= ~(1 << page);
+		return status;
+	}
 		
 }
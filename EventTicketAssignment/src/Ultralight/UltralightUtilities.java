@@ -43,39 +43,46 @@ public class UltralightUtilities {
 		return memory;
 	}
 
+	// The 7-byte serial number from a card memory image that starts at
+	// offset: bytes 0..2 of page 0 and all of page 1. The check byte BCC0
+	// in page 0 is skipped.
+	public static long getUid(byte[] memory, int offset) {
+		long uid = 0;
+		for (int i = 0; i < 8; i++)
+			if (i != 3) uid = (uid << 8) | (memory[offset + i] & 0xFF);
+		return uid;
+	}
+
+	// Serial number as 14 hex digits, the way the card vendors print it.
+	public static String uidToString(long uid) {
+		return String.format("%014X", uid);
+	}
+
 	// Dump card memory to output.
 	public void printMemory(java.io.PrintStream out) throws CardException {
 		byte[] memory = readMemory();
 		if (memory == null) return;
-		out.println("\n\nCard memory dump:");
-		out.println("Page Hexadecimal    ASCII   Binary");
-		out.println("---------------------------------------------------------------");
-		for (int i = 0; i < 16; i++) {
-			// Page number
-			out.printf("%02d   ",i);
-			// Hexadecimal
-			for (int j = 0; j < 4; j++)
-				out.printf("%02X ", memory[4 * i + j]);
-			out.print("   ");
-			// ASCII characters
-			for (int j = 0; j < 4; j++) {
-				char c = (char) memory[4 * i + j];
-				if (Character.isISOControl(c) || c >= 128)
-					out.print(".");
-				else
-					out.printf("%c", c);
-			}
-			out.print("    ");
-			// Binary
-			for (int j = 0; j < 4; j++) {
-				for (int k = 0; k < 8; k++)
-					out.print((((memory[4 * i + j] >> (7 - k)) % 2) == 0 ? 0 : 1));
-				out.print(" ");
+		printMemory(out, memory);
+	}
+
+	// Dump a 64-byte card memory image to output.
+	public static void printMemory(java.io.PrintStream out, byte[] memory) {
+		printMemory(out, memory, MemoryDumpFormatter.Format.TABLE);
+	}
+
+	private static final MemoryDumpFormatter dumpFormatter = new MemoryDumpFormatter();
+
+	// Dump a 64-byte card memory image to output in the given format.
+	public static void printMemory(java.io.PrintStream out, byte[] memory,
+			MemoryDumpFormatter.Format format) {
+		// PrintStream never throws; it sets its error flag instead.
+		synchronized (dumpFormatter) {
+			try {
+				dumpFormatter.write(out, memory, format);
+			} catch (java.io.IOException e) {
+				out.println("Failed printing memory dump: " + e);
 			}
-			out.println();
 		}
-		out.println("---------------------------------------------------------------");
-		out.println();
 	}
 
 	// Write data from a byte array into selected pages on the card.
@@ -0,0 +1,46 @@
+import java.lang.reflect.Method;
+
+/**
+ * Runs all behavior tests. They need no reader hardware: cards are
+ * emulated with Ultralight.EmulatedTerminal. Compile src and test into one
+ * class directory and run this class, e.g.
+ *
+ *   javac -d out $(find src test -name '*.java')
+ *   java -cp out AllTests
+ */
+public class AllTests {
+
+	private static final String[] tests = {
+			"Gate.ReaderSchedulerTest",
+			"Gate.SyncClientTest",
+			"Ticket.DenylistTest",
+			"Ticket.FareRulesTest",
+			"Ticket.KeyDistributionTest",
+			"Ticket.KeyRingTest",
+			"Ticket.OnlineCheckTest",
+			"Ticket.TicketAuditTest",
+			"Ultralight.CardImageStoreTest",
+			"Ultralight.CardReaderTest",
+			"Ultralight.MemoryDumpFormatterTest",
+			"Ultralight.UltralightCommandsTest",
+	};
+
+	public static void main(String[] args) throws Exception {
+		int failed = 0;
+		for (String name : tests) {
+			Method main = Class.forName(name).getMethod("main", String[].class);
+			try {
+				main.invoke(null, (Object) new String[0]);
+				System.out.println("ok     " + name);
+			} catch (java.lang.reflect.InvocationTargetException e) {
+				failed++;
+				System.out.println("FAILED " + name + ": " + e.getCause());
+				e.getCause().printStackTrace(System.out);
+			}
+		}
+		System.out.println(tests.length - failed + " of " + tests.length
+				+ " test classes passed.");
+		if (failed > 0) System.exit(1);
+	}
+
+}
@@ -0,0 +1,221 @@
+package Gate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import Gate.ReaderScheduler.Priority;
+import Testing.Check;
+import Ultralight.CardReader;
+
+/**
+ * ReaderScheduler runs validations ahead of queued bulk work, limits bulk
+ * work, keeps the tasks of one reader in order and one at a time, and
+ * stops its workers on shutdown.
+ */
+public class ReaderSchedulerTest {
+
+	private static CardReader reader() {
+		return new CardReader(null, null);
+	}
+
+	// Task that records its name when it starts, and then waits for the
+	// latch, if any.
+	private static Callable<Void> task(final String name,
+			final List<String> started, final CountDownLatch release) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				started.add(name);
+				if (release != null) release.await();
+				return null;
+			}
+		};
+	}
+
+	// Wait until the tasks have started.
+	private static void awaitStarted(List<String> started, int count)
+			throws InterruptedException {
+		for (int i = 0; i < 500 && started.size() < count; i++)
+			Thread.sleep(2);
+		Check.equal(count, started.size(), "started tasks");
+	}
+
+	private static void stop(ReaderScheduler scheduler) throws Exception {
+		scheduler.shutdown();
+		Check.isTrue(scheduler.awaitTermination(5000), "workers stopped");
+	}
+
+	static void checksBulkLimit() {
+		for (final int bulk : new int[] { 0, 3, 4 })
+			Check.fails(IllegalArgumentException.class, new Runnable() {
+				public void run() {
+					new ReaderScheduler(3, bulk, 1);
+				}
+			}, bulk + " running bulk tasks of 3 workers");
+	}
+
+	static void validationGoesFirst() throws Exception {
+		ReaderScheduler scheduler = new ReaderScheduler(3, 2, 10);
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch hold = new CountDownLatch(1);
+		CountDownLatch staff = new CountDownLatch(1);
+		scheduler.submit(reader(), Priority.BULK, task("bulk 1", started, hold));
+		scheduler.submit(reader(), Priority.STAFF, task("staff 1", started, staff));
+		scheduler.submit(reader(), Priority.STAFF, task("staff 2", started, hold));
+		awaitStarted(started, 3);
+		Future<?> bulk = scheduler.submit(reader(), Priority.BULK, task(
+				"bulk 2", started, null));
+		Future<?> validation = scheduler.submit(reader(), Priority.VALIDATION,
+				task("validation", started, null));
+		// One worker becomes free. A bulk slot is free too, but the later
+		// validation goes first.
+		staff.countDown();
+		validation.get(5, TimeUnit.SECONDS);
+		bulk.get(5, TimeUnit.SECONDS);
+		Check.equal("validation", started.get(3), "first task after staff 1");
+		Check.equal("bulk 2", started.get(4), "then the bulk task");
+		hold.countDown();
+		stop(scheduler);
+	}
+
+	static void limitsBulk() throws Exception {
+		ReaderScheduler scheduler = new ReaderScheduler(3, 1, 2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final CountDownLatch hold = new CountDownLatch(1);
+		Callable<Void> bulk = new Callable<Void>() {
+			public Void call() throws Exception {
+				int now = running.incrementAndGet();
+				synchronized (maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), now));
+				}
+				hold.await();
+				running.decrementAndGet();
+				return null;
+			}
+		};
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		tasks.add(scheduler.submit(reader(), Priority.BULK, bulk));
+		for (int i = 0; i < 500 && running.get() == 0; i++)
+			Thread.sleep(2);
+		for (int i = 0; i < 2; i++)
+			tasks.add(scheduler.submit(reader(), Priority.BULK, bulk));
+		// One runs and two wait, which is the limit.
+		Check.equal(2, scheduler.getQueueDepth(Priority.BULK), "waiting bulk");
+		try {
+			scheduler.submit(reader(), Priority.BULK, task("rejected",
+					new ArrayList<String>(), null));
+			throw new AssertionError("bulk task beyond the limit was admitted");
+		} catch (RejectedExecutionException e) {
+			Check.equal(1, scheduler.getRejected(), "rejected tasks");
+		}
+		scheduler.submit(reader(), Priority.VALIDATION, task("validation",
+				new ArrayList<String>(), null)).get(5, TimeUnit.SECONDS);
+		hold.countDown();
+		for (Future<?> task : tasks)
+			task.get(5, TimeUnit.SECONDS);
+		Check.equal(1, maxRunning.get(), "bulk tasks running at once");
+		Check.equal(3, scheduler.getCompleted(Priority.BULK), "completed bulk");
+		stop(scheduler);
+	}
+
+	// The tasks of one reader run one at a time in submission order, even
+	// when a later one has a higher priority.
+	static void keepsReaderOrder() throws Exception {
+		ReaderScheduler scheduler = new ReaderScheduler(4, 2, 100);
+		CardReader reader = reader();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch hold = new CountDownLatch(1);
+		scheduler.submit(reader, Priority.STAFF, task("first", started, hold));
+		awaitStarted(started, 1);
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		Priority[] priorities = { Priority.BULK, Priority.STAFF,
+				Priority.VALIDATION };
+		for (int i = 0; i < 30; i++) {
+			final int index = i;
+			tasks.add(scheduler.submit(reader, priorities[i % 3],
+					new Callable<Void>() {
+						public Void call() throws Exception {
+							if (running.incrementAndGet() > 1)
+								overlaps.incrementAndGet();
+							order.add(index);
+							Thread.sleep(1);
+							running.decrementAndGet();
+							return null;
+						}
+					}));
+		}
+		hold.countDown();
+		for (Future<?> task : tasks)
+			task.get(5, TimeUnit.SECONDS);
+		Check.equal(0, overlaps.get(), "tasks of one reader at the same time");
+		for (int i = 0; i < 30; i++)
+			Check.equal(i, order.get(i).intValue(), "task in order");
+		stop(scheduler);
+	}
+
+	// The mean wait counts the tasks that have started, also those that
+	// are still running.
+	static void measuresWaits() throws Exception {
+		ReaderScheduler scheduler = new ReaderScheduler(2, 1, 10);
+		CardReader reader = reader();
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch first = new CountDownLatch(1);
+		CountDownLatch second = new CountDownLatch(1);
+		scheduler.submit(reader, Priority.STAFF, task("first", started, first));
+		scheduler.submit(reader, Priority.STAFF, task("second", started, second));
+		awaitStarted(started, 1);
+		Thread.sleep(100);
+		first.countDown();
+		awaitStarted(started, 2);
+		// The second task waited about 100 ms and the first none.
+		long mean = scheduler.getMeanQueueWait(Priority.STAFF) / 1000000;
+		Check.isTrue(mean >= 40 && mean < 80, "mean wait " + mean + " ms");
+		second.countDown();
+		stop(scheduler);
+	}
+
+	static void shutsDown() throws Exception {
+		ReaderScheduler scheduler = new ReaderScheduler(2, 1, 10);
+		CardReader reader = reader();
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch hold = new CountDownLatch(1);
+		Future<?> running = scheduler.submit(reader, Priority.STAFF, task(
+				"running", started, hold));
+		awaitStarted(started, 1);
+		Future<?> waiting = scheduler.submit(reader, Priority.STAFF, task(
+				"waiting", started, null));
+		scheduler.shutdown();
+		Check.isTrue(waiting.isCancelled(), "waiting task cancelled");
+		try {
+			scheduler.submit(reader(), Priority.VALIDATION, task("late",
+					started, null));
+			throw new AssertionError("task admitted after shutdown");
+		} catch (RejectedExecutionException e) {
+			// Expected.
+		}
+		Check.isTrue(!scheduler.awaitTermination(50), "running task finishes");
+		hold.countDown();
+		running.get(5, TimeUnit.SECONDS);
+		Check.isTrue(scheduler.awaitTermination(5000), "workers stopped");
+		Check.equal(1, started.size(), "only the running task ran");
+	}
+
+	public static void main(String[] args) throws Exception {
+		checksBulkLimit();
+		validationGoesFirst();
+		limitsBulk();
+		keepsReaderOrder();
+		measuresWaits();
+		shutsDown();
+	}
+
+}
@@ -0,0 +1,178 @@
+package Gate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import Testing.Check;
+import Ticket.Denylist;
+import Ticket.KeyDistribution;
+import Ticket.KeyRing;
+
+/**
+ * SyncClient applies denylist and key updates from the server, rejects
+ * updates that are not made with its distribution key, and applies nothing
+ * of a response that is not authentic or not complete.
+ */
+public class SyncClientTest {
+
+	private static final byte[] key = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+			12, 13, 14, 15, 16 };
+
+	// Poll until the denylist reaches the version, or give up.
+	private static void awaitVersion(Denylist denylist, long version)
+			throws InterruptedException {
+		for (int i = 0; i < 200 && denylist.getVersion() < version; i++)
+			Thread.sleep(10);
+	}
+
+	private static SyncClient client(int port, Denylist denylist,
+			KeyRing keyRing, byte[] distributionKey) throws Exception {
+		SyncClient client = new SyncClient(new URL("http://localhost:" + port
+				+ "/"), "test", denylist, new KeyDistribution(distributionKey),
+				10, 10);
+		client.setPollInterval(20);
+		client.setFlushInterval(20);
+		client.setKeyRing(keyRing);
+		return client;
+	}
+
+	// Server that answers every poll with the same lines.
+	private static HttpServer serve(final String... lines) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				"localhost", 0), 0);
+		server.createContext("/updates", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder text = new StringBuilder();
+				for (String line : lines)
+					text.append(line).append('\n');
+				byte[] response = text.toString().getBytes("US-ASCII");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	// Poll a few times and check that nothing of the response is applied.
+	private static void appliesNothing(String what, boolean rejected,
+			String... lines) throws Exception {
+		HttpServer server = serve(lines);
+		Denylist denylist = new Denylist();
+		KeyRing keyRing = new KeyRing();
+		SyncClient client = client(server.getAddress().getPort(), denylist,
+				keyRing, "distribution key 1".getBytes());
+		client.start();
+		try {
+			for (int i = 0; i < 200 && client.getFailedRequests() < 3; i++)
+				Thread.sleep(10);
+			Check.isTrue(client.getFailedRequests() >= 3, what + ": poll fails");
+			Check.equal(rejected, client.getRejectedUpdates() > 0, what
+					+ ": rejected as not authentic");
+			Check.equal(0, denylist.getVersion(), what + ": version");
+			Check.isTrue(!denylist.contains(0x42), what + ": UID not denied");
+			Check.isTrue(keyRing.getMac(3) == null, what + ": no key added");
+			Check.equal(0, keyRing.getCurrentKeyId(), what + ": current key");
+		} finally {
+			client.stop();
+			server.stop(0);
+		}
+	}
+
+	static void appliesUpdates() throws Exception {
+		SyncStandInServer server = new SyncStandInServer(0);
+		server.setKeyDistribution(new KeyDistribution("distribution key 1"
+				.getBytes()));
+		server.deny(0x42);
+		server.addKey(3, key);
+		server.setCurrentKey(3);
+		server.start();
+		Denylist denylist = new Denylist();
+		KeyRing keyRing = new KeyRing();
+		SyncClient client = client(server.getPort(), denylist, keyRing,
+				"distribution key 1".getBytes());
+		client.start();
+		try {
+			awaitVersion(denylist, 3);
+			Check.equal(3, denylist.getVersion(), "version");
+			Check.isTrue(denylist.contains(0x42), "denied UID");
+			Check.equal(3, keyRing.getCurrentKeyId(), "current key");
+			Check.equal(0, client.getRejectedUpdates(), "rejected updates");
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	static void rejectsForeignKeys() throws Exception {
+		SyncStandInServer server = new SyncStandInServer(0);
+		server.setKeyDistribution(new KeyDistribution("not the gate's key"
+				.getBytes()));
+		server.deny(0x42);
+		server.addKey(3, key);
+		server.deny(0x43);
+		server.start();
+		Denylist denylist = new Denylist();
+		KeyRing keyRing = new KeyRing();
+		SyncClient client = client(server.getPort(), denylist, keyRing,
+				"distribution key 1".getBytes());
+		client.start();
+		try {
+			for (int i = 0; i < 200 && client.getRejectedUpdates() < 2; i++)
+				Thread.sleep(10);
+			Check.isTrue(client.getRejectedUpdates() >= 2,
+					"update rejected on every poll");
+			Check.isTrue(keyRing.getMac(3) == null, "no key added");
+			Check.equal(0, denylist.getVersion(), "update not applied");
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	static void rejectsUnauthenticatedLines() throws Exception {
+		KeyDistribution server = new KeyDistribution("distribution key 1"
+				.getBytes());
+		String version = server.authenticate(0, "version 1");
+		String deny = server.authenticate(1, "deny 00000000000042");
+		appliesNothing("plain deny line", true, version, "deny 00000000000042");
+		appliesNothing("changed deny line", true, version, deny.replace("42 ",
+				"43 "));
+		appliesNothing("deny line of another version", true, version, server
+				.authenticate(2, "deny 00000000000042"));
+		appliesNothing("plain version line", false, "version 1", deny);
+		appliesNothing("version line for another request", true, server
+				.authenticate(1, "version 1"), deny);
+		appliesNothing("changed version line", true, version.replace("version 1",
+				"version 2"), deny, server.authenticate(2, "allow 00000000000042"));
+	}
+
+	static void appliesCompleteResponsesOnly() throws Exception {
+		KeyDistribution server = new KeyDistribution("distribution key 1"
+				.getBytes());
+		String key = server.keyLine(1, 3, SyncClientTest.key);
+		String current = server.currentLine(2, 3);
+		String deny = server.authenticate(3, "deny 00000000000042");
+		appliesNothing("no version line", true, key, current, deny);
+		appliesNothing("missing change", false, server.authenticate(0, "version 3"),
+				key, current);
+		appliesNothing("extra change", false, server.authenticate(0, "version 2"),
+				key, current, deny);
+		appliesNothing("rejected change", true, server.authenticate(0,
+				"version 3"), key, current, deny.replace("42 ", "43 "));
+	}
+
+	public static void main(String[] args) throws Exception {
+		appliesUpdates();
+		rejectsForeignKeys();
+		rejectsUnauthenticatedLines();
+		appliesCompleteResponsesOnly();
+	}
+
+}
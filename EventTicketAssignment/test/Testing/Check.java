@@ -0,0 +1,49 @@
+package Testing;
+
+import java.util.Arrays;
+
+/**
+ * Assertions for the behavior tests. The project has no test framework,
+ * so each test class has a main() that calls its test methods, and a
+ * failed check throws an AssertionError.
+ */
+public class Check {
+
+	public static void isTrue(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+
+	public static void equal(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			throw new AssertionError(what + ": expected " + expected + ", got "
+					+ actual);
+	}
+
+	public static void equal(long expected, long actual, String what) {
+		if (expected != actual)
+			throw new AssertionError(what + ": expected " + expected + ", got "
+					+ actual);
+	}
+
+	public static void equal(byte[] expected, byte[] actual, String what) {
+		if (!Arrays.equals(expected, actual))
+			throw new AssertionError(what + ": expected "
+					+ Arrays.toString(expected) + ", got "
+					+ Arrays.toString(actual));
+	}
+
+	// Fails unless the task throws an exception of the given class.
+	public static void fails(Class<? extends Throwable> expected,
+			Runnable task, String what) {
+		try {
+			task.run();
+		} catch (Throwable e) {
+			if (expected.isInstance(e)) return;
+			throw new AssertionError(what + ": expected "
+					+ expected.getSimpleName() + ", got " + e);
+		}
+		throw new AssertionError(what + ": expected "
+				+ expected.getSimpleName());
+	}
+
+}
@@ -0,0 +1,93 @@
+package Ticket;
+
+import Gate.CardFactory;
+import Testing.Check;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * Denylist updates add and remove UIDs without duplicates, and Ticket
+ * rejects a denied card that is otherwise valid.
+ */
+public class DenylistTest {
+
+	private static final int now = 29000000;
+
+	static void appliesUpdates() {
+		Denylist denylist = new Denylist();
+		Check.equal(0, denylist.size(), "empty list");
+		Check.equal(0, denylist.getVersion(), "no version");
+		Check.isTrue(!denylist.contains(1), "empty list denies nothing");
+
+		denylist.update(new long[] { 30, 10, 20, 10 }, new long[0], 1);
+		Check.equal(3, denylist.size(), "duplicate added once");
+		Check.isTrue(denylist.contains(10) && denylist.contains(20)
+				&& denylist.contains(30), "added UIDs");
+		Check.equal(1, denylist.getVersion(), "version 1");
+
+		denylist.update(new long[] { 20, -5 }, new long[] { 10, 99 }, 2);
+		Check.equal(3, denylist.size(), "after second update");
+		Check.isTrue(!denylist.contains(10), "removed UID");
+		Check.isTrue(denylist.contains(-5), "negative UID");
+		Check.isTrue(denylist.contains(20), "UID added again");
+		Check.equal(2, denylist.getVersion(), "version 2");
+
+		// An update that adds and removes the same UID removes it.
+		denylist.update(new long[] { 40 }, new long[] { 40, 30 }, 3);
+		Check.isTrue(!denylist.contains(40) && !denylist.contains(30),
+				"removed in the same update");
+		Check.equal(2, denylist.size(), "after third update");
+	}
+
+	// Lookups during updates see either the old or the new list.
+	static void readsDuringUpdates() throws Exception {
+		final Denylist denylist = new Denylist();
+		denylist.update(new long[] { 7 }, new long[0], 1);
+		final boolean[] missed = new boolean[1];
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 200000; i++)
+					if (!denylist.contains(7)) missed[0] = true;
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 2000; i++)
+			denylist.update(new long[] { 1000 + i }, new long[] { 999 + i },
+					2 + i);
+		reader.join();
+		Check.isTrue(!missed[0], "UID 7 stays denied");
+		Check.equal(2, denylist.size(), "UID 7 and the last added");
+	}
+
+	static void ticketRejectsDeniedCard() throws Exception {
+		EmulatedTerminal terminal = new EmulatedTerminal("Denylist test");
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		UltralightCommands ul = new UltralightCommands(reader);
+		ul.safe = false;
+		Ticket ticket = new Ticket(ul, null);
+		Denylist denylist = new Denylist();
+		ticket.setDenylist(denylist);
+		terminal.insertCard(new CardFactory().issue(42, CardFactory.Kind.VALID,
+				now));
+		reader.initCard();
+
+		Check.equal(ValidationResult.Reason.VALID, ticket.peek(now).getReason(),
+				"before the update");
+		denylist.update(new long[] { 42 }, new long[0], 1);
+		ValidationResult result = ticket.use(now);
+		Check.equal(ValidationResult.Reason.DENYLISTED, result.getReason(),
+				"denied card");
+		denylist.update(new long[0], new long[] { 42 }, 2);
+		Check.equal(ValidationResult.Reason.VALID, ticket.use(now).getReason(),
+				"allowed again");
+	}
+
+	public static void main(String[] args) throws Exception {
+		appliesUpdates();
+		readsDuringUpdates();
+		ticketRejectsDeniedCard();
+	}
+
+}
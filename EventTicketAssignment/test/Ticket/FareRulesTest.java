@@ -0,0 +1,149 @@
+package Ticket;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import Testing.Check;
+
+/**
+ * FareRules compiles rule files into the zone and time tables that
+ * check() reads, and rejects files and zones it cannot represent.
+ */
+public class FareRulesTest {
+
+	private static final ValidationResult.Reason VALID = ValidationResult.Reason.VALID;
+	private static final ValidationResult.Reason WRONG_ZONE = ValidationResult.Reason.WRONG_ZONE;
+	private static final ValidationResult.Reason NOT_VALID_NOW = ValidationResult.Reason.NOT_VALID_NOW;
+
+	private static File file(String... lines) throws IOException {
+		File file = File.createTempFile("rules", ".txt");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		for (String line : lines)
+			out.write((line + "\n").getBytes("UTF-8"));
+		out.close();
+		return file;
+	}
+
+	// UTC time in minutes since January 1, 1970. 2026-10-19 is a Monday.
+	private static int time(String utc) throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return (int) (format.parse(utc).getTime() / 1000 / 60);
+	}
+
+	static void checksZones() throws Exception {
+		FareRules rules = new FareRules();
+		int now = time("2026-10-19T12:00");
+		Check.equal(VALID, rules.check(1, 63, now), "no rules loaded");
+		rules.load(file("product 1", "zones 1-3,5", "product 2", "zones 0,63"));
+		Check.equal(VALID, rules.check(1, 2, now), "zone in range");
+		Check.equal(VALID, rules.check(1, 5, now), "single zone");
+		Check.equal(WRONG_ZONE, rules.check(1, 4, now), "zone in the gap");
+		Check.equal(VALID, rules.check(1, -1, now), "zone check skipped");
+		Check.equal(VALID, rules.check(2, 63, now), "last zone");
+		Check.equal(VALID, rules.check(3, 40, now), "product without rules");
+		// 1L << 65 would be zone 1, and 1L << 64 zone 0.
+		Check.equal(WRONG_ZONE, rules.check(1, 65, now), "zone 65");
+		Check.equal(WRONG_ZONE, rules.check(2, 64, now), "zone 64");
+		Check.equal(WRONG_ZONE, rules.check(3, 64, now), "zone 64 without rules");
+	}
+
+	static void checksTimes() throws Exception {
+		FareRules rules = new FareRules();
+		rules.load(file("# Off-peak ticket in local time, UTC+2",
+				"utcoffset +120",
+				"product 1",
+				"allow mon-fri 09:30-16:00",
+				"deny wed",
+				"allow fri-mon 22:00-04:00 # night service",
+				"product 2",
+				"deny sun"));
+		Check.equal(NOT_VALID_NOW, rules.check(1, -1, time("2026-10-19T07:29")),
+				"Monday 09:29 local");
+		Check.equal(VALID, rules.check(1, -1, time("2026-10-19T07:30")),
+				"Monday 09:30 local");
+		Check.equal(VALID, rules.check(1, -1, time("2026-10-19T13:59")),
+				"Monday 15:59 local");
+		Check.equal(NOT_VALID_NOW, rules.check(1, -1, time("2026-10-19T14:00")),
+				"Monday 16:00 local");
+		Check.equal(NOT_VALID_NOW, rules.check(1, -1, time("2026-10-21T10:00")),
+				"Wednesday is denied");
+		Check.equal(VALID, rules.check(1, -1, time("2026-10-24T01:00")),
+				"Saturday 03:00 local, after Friday night");
+		Check.equal(VALID, rules.check(1, -1, time("2026-10-20T01:00")),
+				"Tuesday 03:00 local, after Monday night");
+		Check.equal(NOT_VALID_NOW, rules.check(1, -1, time("2026-10-21T01:00")),
+				"Wednesday 03:00 local, no Tuesday night");
+		Check.equal(NOT_VALID_NOW, rules.check(2, -1, time("2026-10-25T12:00")),
+				"deny without allow");
+		Check.equal(NOT_VALID_NOW, rules.check(2, -1, time("2026-10-19T12:00")),
+				"time rules start from no time");
+		Check.equal(VALID, rules.check(0, -1, time("2026-10-25T12:00")),
+				"product not in the file");
+	}
+
+	static void rejectsBadFiles() throws Exception {
+		FareRules rules = new FareRules();
+		rules.load(file("product 1", "zones 1"));
+		String[][] bad = { { "product 1", "zones 0-64" },
+				{ "product 1", "zones 64" }, { "product 1", "zones 3-1" },
+				{ "product 1", "zones -1" }, { "product 256" },
+				{ "zones 1" }, { "product 1", "allow someday" },
+				{ "product 1", "allow mon 09:00-25:00" },
+				{ "product 1", "allow mon 0900-1000" } };
+		for (String[] lines : bad) {
+			try {
+				rules.load(file(lines));
+				throw new AssertionError("accepted " + lines[lines.length - 1]);
+			} catch (IOException e) {
+				Check.isTrue(e.getMessage().contains(":" + lines.length + ": "),
+						"line number in " + e.getMessage());
+			}
+		}
+		int now = time("2026-10-19T12:00");
+		Check.equal(WRONG_ZONE, rules.check(1, 2, now), "old rules stay in force");
+	}
+
+	static void reloadsChangedFile() throws Exception {
+		FareRules rules = new FareRules();
+		File file = file("product 1", "zones 1");
+		rules.load(file);
+		Check.isTrue(!rules.reloadIfModified(), "unchanged file");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("product 1\nzones 2\n".getBytes("UTF-8"));
+		out.close();
+		file.setLastModified(file.lastModified() + 2000);
+		Check.isTrue(rules.reloadIfModified(), "changed file");
+		int now = time("2026-10-19T12:00");
+		Check.equal(VALID, rules.check(1, 2, now), "new rules");
+	}
+
+	static void ticketRejectsBadZone() throws Exception {
+		final Ticket ticket = new Ticket(null, null);
+		final FareRules rules = new FareRules();
+		ticket.setFareRules(rules, -1);
+		ticket.setFareRules(rules, 63);
+		Check.fails(IllegalArgumentException.class, new Runnable() {
+			public void run() {
+				ticket.setFareRules(rules, 64);
+			}
+		}, "zone 64");
+		Check.fails(IllegalArgumentException.class, new Runnable() {
+			public void run() {
+				ticket.setFareRules(rules, -2);
+			}
+		}, "zone -2");
+	}
+
+	public static void main(String[] args) throws Exception {
+		checksZones();
+		checksTimes();
+		rejectsBadFiles();
+		reloadsChangedFile();
+		ticketRejectsBadZone();
+	}
+
+}
@@ -0,0 +1,88 @@
+package Ticket;
+
+import Testing.Check;
+
+/**
+ * KeyDistribution applies only key lines made with the same distribution
+ * key for the same update version, and never sends a key in the clear.
+ */
+public class KeyDistributionTest {
+
+	private static final byte[] distributionKey = "0123456789abcdef"
+			.getBytes();
+	private static final byte[] key = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+			12, 13, 14, 15, 16 };
+
+	// Fails unless applying the line throws a GeneralSecurityException and
+	// leaves the ring as it was.
+	private static void rejected(KeyDistribution distribution, long version,
+			String line, String what) throws Exception {
+		KeyRing keyRing = new KeyRing();
+		try {
+			distribution.apply(keyRing, version, line);
+			throw new AssertionError(what + " was applied");
+		} catch (java.security.GeneralSecurityException e) {
+			// Expected.
+		}
+		Check.isTrue(keyRing.getMac(5) == null, what + " added no key");
+		Check.equal(0, keyRing.getCurrentKeyId(), what + " kept the key");
+	}
+
+	static void appliesAuthenticLines() throws Exception {
+		KeyDistribution server = new KeyDistribution(distributionKey);
+		KeyDistribution gate = new KeyDistribution(distributionKey);
+		KeyRing keyRing = new KeyRing();
+		String keyLine = server.keyLine(7, 5, key);
+		Check.isTrue(!keyLine.contains("0102030405060708"), "key is encrypted");
+		Check.isTrue(!keyLine.equals(server.keyLine(7, 5, key)),
+				"random IV per line");
+		gate.apply(keyRing, 7, keyLine);
+		gate.apply(keyRing, 8, server.currentLine(8, 5));
+		Check.equal(5, keyRing.getCurrentKeyId(), "current key");
+		byte[] data = new byte[28];
+		Check.equal(new TicketMac(key).generateMac(data), keyRing.getMac(5)
+				.generateMac(data), "decrypted key");
+	}
+
+	static void rejectsOtherLines() throws Exception {
+		KeyDistribution server = new KeyDistribution(distributionKey);
+		KeyDistribution gate = new KeyDistribution(distributionKey);
+		String keyLine = server.keyLine(7, 5, key);
+		String[] words = keyLine.split(" ");
+
+		rejected(gate, 7, "key 5 0102030405060708090A0B0C0D0E0F10 00",
+				"plain key line");
+		rejected(gate, 8, keyLine, "replayed as another version");
+		rejected(gate, 7, "key 6 " + words[2] + " " + words[3],
+				"key line with another id");
+		char flipped = words[2].charAt(40) == '0' ? '1' : '0';
+		rejected(gate, 7, "key 5 " + words[2].substring(0, 40) + flipped
+				+ words[2].substring(41) + " " + words[3], "tampered key");
+		rejected(new KeyDistribution("another distribution key".getBytes()),
+				7, keyLine, "other distribution key");
+		KeyRing keyRing = new KeyRing();
+		gate.apply(keyRing, 7, keyLine);
+		String current = server.currentLine(8, 5);
+		try {
+			gate.apply(keyRing, 8, current.replace("current 5", "current 0"));
+			throw new AssertionError("tampered current line was applied");
+		} catch (java.security.GeneralSecurityException e) {
+			Check.equal(0, keyRing.getCurrentKeyId(), "current key kept");
+		}
+		Check.fails(IllegalArgumentException.class, new Runnable() {
+			public void run() {
+				try {
+					new KeyDistribution(new byte[8]);
+				} catch (java.security.GeneralSecurityException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "short distribution key");
+	}
+
+	public static void main(String[] args) throws Exception {
+		appliesAuthenticLines();
+		rejectsOtherLines();
+	}
+
+}
@@ -0,0 +1,261 @@
+package Ticket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.smartcardio.CardException;
+import Gate.CardFactory;
+import Testing.Check;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * KeyRing keeps keys and the current key consistent for concurrent
+ * readers, TicketMac can be shared by threads, and Ticket.use() moves cards to the current key so that a card
+ * taken away in the middle is still valid.
+ */
+public class KeyRingTest {
+
+	private static final int now = 29000000;
+
+	private static byte[] key(int id) {
+		byte[] key = new byte[16];
+		Arrays.fill(key, (byte) id);
+		return key;
+	}
+
+	static void appliesLines() throws Exception {
+		File file = File.createTempFile("keys", ".txt");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(("# Rotation\nkey 1 01010101010101010101010101010101\n\n"
+				+ "key 127 7F7F7F7F7F7F7F7F7F7F7F7F7F7F7F7F\ncurrent 1 # now\n")
+				.getBytes("US-ASCII"));
+		out.close();
+		KeyRing keyRing = new KeyRing();
+		keyRing.load(file);
+		Check.equal(1, keyRing.getCurrentKeyId(), "current key");
+		Check.equal(1, keyRing.getCurrentKey().getId(), "current key id");
+		Check.isTrue(keyRing.getCurrentKey().getMac() == keyRing.getMac(1),
+				"current key MAC");
+		byte[] data = new byte[28];
+		Check.equal(new TicketMac(key(127)).generateMac(data), keyRing
+				.getMac(127).generateMac(data), "key 127");
+		Check.isTrue(keyRing.getMac(2) == null, "unknown key");
+
+		final KeyRing ring = keyRing;
+		String[] bad = { "key 128 00", "key 0 00", "key 2 0", "current 5",
+				"current", "remove 1" };
+		for (final String line : bad)
+			Check.fails(IllegalArgumentException.class, new Runnable() {
+				public void run() {
+					try {
+						ring.apply(line);
+					} catch (java.security.GeneralSecurityException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, line);
+		Check.fails(IllegalArgumentException.class, new Runnable() {
+			public void run() {
+				ring.removeKey(1);
+			}
+		}, "remove the current key");
+		keyRing.removeKey(127);
+		Check.isTrue(keyRing.getMac(127) == null, "removed key");
+	}
+
+	// The current key never comes without its MAC, even while keys are
+	// rotated and retired.
+	static void currentKeyIsConsistent() throws Exception {
+		final KeyRing keyRing = new KeyRing();
+		keyRing.addKey(1, key(1));
+		keyRing.setCurrentKey(1);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final int[] missing = new int[1];
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				while (!stop.get())
+					if (keyRing.getCurrentKey().getMac() == null) missing[0]++;
+			}
+		});
+		reader.start();
+		for (int i = 2; i < 2000; i++) {
+			int id = 1 + i % 2;
+			keyRing.addKey(id, key(id));
+			keyRing.setCurrentKey(id);
+			keyRing.removeKey(3 - id);
+		}
+		stop.set(true);
+		reader.join();
+		Check.equal(0, missing[0], "current keys without a MAC");
+	}
+
+	static void copiesKeys() throws Exception {
+		KeyRing keyRing = new KeyRing();
+		keyRing.addKey(5, key(5));
+		keyRing.setCurrentKey(5);
+		KeyRing copy = keyRing.copy();
+		Check.isTrue(copy.getMac(5) != keyRing.getMac(5), "own TicketMac");
+		byte[] data = new byte[28];
+		Check.equal(keyRing.getMac(5).generateMac(data), copy.getMac(5)
+				.generateMac(data), "same key");
+		Check.equal(5, copy.getCurrentKeyId(), "same current key");
+		keyRing.addKey(6, key(6));
+		Check.isTrue(copy.getMac(6) == null, "later key not copied");
+	}
+
+	// One TicketMac gives every thread the same MACs.
+	static void sharesMacs() throws Exception {
+		final TicketMac mac = new TicketMac(key(7));
+		final byte[][] data = new byte[50][TicketMac.DATA_LENGTH];
+		final byte[][] expected = new byte[data.length][];
+		for (int i = 0; i < data.length; i++) {
+			Arrays.fill(data[i], (byte) i);
+			expected[i] = mac.generateMac(data[i]);
+		}
+		final int[] wrong = new int[4];
+		Thread[] threads = new Thread[wrong.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int n = 0; n < 2000; n++) {
+							int i = (n + thread) % data.length;
+							if (!Arrays.equals(expected[i], mac.generateMac(data[i])))
+								wrong[thread]++;
+						}
+					} catch (Exception e) {
+						wrong[thread]++;
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			Check.equal(0, wrong[t], "wrong MACs in thread " + t);
+		}
+		Check.isTrue(TicketMac.scratch() == TicketMac.scratch(),
+				"scratch buffer kept");
+	}
+
+	// Rotate the key of a card with taps, and check it like a torn re-MAC.
+	static void movesCardsToCurrentKey() throws Exception {
+		EmulatedTerminal terminal = new EmulatedTerminal("Key test");
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		UltralightCommands ul = new UltralightCommands(reader);
+		ul.safe = false;
+		Ticket ticket = new Ticket(ul, null);
+		KeyRing keyRing = new KeyRing();
+		keyRing.addKey(1, key(1));
+		keyRing.addKey(2, key(2));
+		ticket.setKeyRing(keyRing, true);
+		byte[] card = new CardFactory().issue(7, CardFactory.Kind.VALID, now);
+		byte[] issued = card.clone();
+		terminal.insertCard(card);
+		reader.initCard();
+
+		keyRing.setCurrentKey(1);
+		Check.isTrue(ticket.use(now).isValid(), "tap with key 0");
+		Check.equal(0x81, card[25] & 0xFF, "key 1 in MAC pages 9..10");
+		Check.isTrue(Arrays.equals(Arrays.copyOfRange(issued, 28, 36),
+				Arrays.copyOfRange(card, 28, 36)), "MAC pages 7..8 kept");
+		Check.isTrue(ticket.peek(now).isValid(), "valid with key 1");
+
+		keyRing.setCurrentKey(2);
+		Check.isTrue(ticket.use(now).isValid(), "tap with key 1");
+		Check.equal(0x02, card[25] & 0xFF, "key 2 in MAC pages 7..8");
+		Check.isTrue(ticket.peek(now).isValid(), "valid with key 2");
+
+		// Taken away after the new MAC but before page 6: the old key id
+		// still points to the old MAC.
+		byte[] after = card.clone();
+		terminal.insertCard(after);
+		reader.initCard();
+		keyRing.setCurrentKey(1);
+		Check.isTrue(ticket.use(now).isValid(), "tap with key 2");
+		Check.equal(0x81, after[25] & 0xFF, "key 1 in MAC pages 9..10 again");
+		byte[] torn = card.clone();
+		System.arraycopy(after, 12, torn, 12, 4); // OTP
+		System.arraycopy(after, 36, torn, 36, 8); // MAC pages 9..10
+		terminal.insertCard(torn);
+		reader.initCard();
+		Check.isTrue(ticket.peek(now).isValid(), "torn card is valid");
+		Check.equal(0x02, torn[25] & 0xFF, "peek does not move the card");
+
+		// A tampered slot bit points to a MAC that does not match.
+		byte[] flipped = card.clone();
+		flipped[25] ^= Ticket.MAC_SLOT_BIT;
+		terminal.insertCard(flipped);
+		reader.initCard();
+		Check.equal(ValidationResult.Reason.BAD_MAC, ticket.peek(now)
+				.getReason(), "wrong MAC pages");
+
+		// The audit accepts the same cards.
+		TicketAudit audit = new TicketAudit(ticket.applicationTag, 1);
+		TicketAudit.Summary summary = new TicketAudit.Summary();
+		KeyRing keys = keyRing.copy();
+		for (byte[] image : new byte[][] { card, after, torn })
+			audit.audit(image, now, new byte[7 * 4], keys, summary);
+		audit.audit(flipped, now, new byte[7 * 4], keys, summary);
+		Check.equal(3, summary.valid, "valid in the audit");
+		Check.equal(1, summary.anomalies[TicketAudit.Anomaly.BAD_MAC.ordinal()],
+				"bad MAC in the audit");
+	}
+
+	// A re-MAC whose page 6 write fails is reported, and the card keeps
+	// its old key. reissue() takes as many uses as issue().
+	static void reportsFailedRemac() throws Exception {
+		EmulatedTerminal terminal = new EmulatedTerminal("Key test");
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		UltralightCommands ul = new UltralightCommands(reader) {
+			public boolean writeBinary(int adr, byte[] srcBuffer, int srcPos)
+					throws CardException {
+				return adr != 6 && super.writeBinary(adr, srcBuffer, srcPos);
+			}
+		};
+		ul.safe = false;
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		Ticket ticket = new Ticket(ul, new PrintStream(messages, true));
+		KeyRing keyRing = new KeyRing();
+		keyRing.addKey(1, key(1));
+		keyRing.setCurrentKey(1);
+		ticket.setKeyRing(keyRing, true);
+		byte[] card = new CardFactory().issue(8, CardFactory.Kind.VALID, now);
+		terminal.insertCard(card);
+		reader.initCard();
+		Check.isTrue(ticket.use(now).isValid(), "tap");
+		Check.isTrue(messages.toString().contains("Could not move the card"),
+				"failure reported: " + messages);
+		Check.equal(0, card[25], "old key id");
+		Check.isTrue(ticket.peek(now).isValid(), "valid with the old key");
+
+		UltralightCommands staffUl = new UltralightCommands(reader);
+		staffUl.safe = false;
+		Ticket staff = new Ticket(staffUl, new PrintStream(messages, true));
+		ValidationResult result = staff.reissue(now + 60, 1000);
+		Check.equal(ValidationResult.Reason.VALID, result.getReason(),
+				"reissue for 1000 uses");
+		Check.equal(999, result.getRemainingUses(), "remaining uses");
+		Check.equal(ValidationResult.Reason.INVALID_USES, staff.reissue(
+				now + 60, 0x10000).getReason(), "too many uses");
+	}
+
+	public static void main(String[] args) throws Exception {
+		appliesLines();
+		currentKeyIsConsistent();
+		copiesKeys();
+		sharesMacs();
+		movesCardsToCurrentKey();
+		reportsFailedRemac();
+	}
+
+}
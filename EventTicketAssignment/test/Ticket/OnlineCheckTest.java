@@ -0,0 +1,150 @@
+package Ticket;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import Gate.CardFactory;
+import Testing.Check;
+import Ultralight.EmulatedCardReader;
+import Ultralight.EmulatedTerminal;
+import Ultralight.UltralightCommands;
+
+/**
+ * The online check can reject a card, but a late, failed or undecided
+ * lookup never makes a tap wait past its deadline or fail.
+ */
+public class OnlineCheckTest {
+
+	private static final int now = 29000000;
+
+	private final EmulatedTerminal terminal = new EmulatedTerminal(
+			"Online test");
+	private final EmulatedCardReader reader = new EmulatedCardReader(terminal,
+			null, null);
+	private final Ticket ticket;
+	private final CardFactory factory = new CardFactory();
+
+	private OnlineCheckTest() throws Exception {
+		reader.initReader();
+		UltralightCommands ul = new UltralightCommands(reader);
+		ul.safe = false;
+		ticket = new Ticket(ul, null);
+	}
+
+	private void insert(long uid, CardFactory.Kind kind) throws Exception {
+		terminal.insertCard(factory.issue(uid, kind, now));
+		reader.initCard();
+	}
+
+	// Answers at once with the given value, and remembers the UID.
+	private static class Answer implements OnlineCheck {
+		final Boolean accepted;
+		final RuntimeException failure;
+		long uid = -1;
+
+		Answer(Boolean accepted, RuntimeException failure) {
+			this.accepted = accepted;
+			this.failure = failure;
+		}
+
+		public Future<Boolean> lookup(long uid) {
+			this.uid = uid;
+			FutureTask<Boolean> answer = new FutureTask<Boolean>(
+					new Callable<Boolean>() {
+						public Boolean call() {
+							if (failure != null) throw failure;
+							return accepted;
+						}
+					});
+			answer.run();
+			return answer;
+		}
+	}
+
+	// A lookup that never answers. It remembers its last lookup.
+	private static class Silent implements OnlineCheck {
+		Future<Boolean> last = null;
+
+		public Future<Boolean> lookup(long uid) {
+			last = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() {
+					return Boolean.TRUE;
+				}
+			});
+			return last;
+		}
+	}
+
+	void rejectsCard() throws Exception {
+		Answer reject = new Answer(Boolean.FALSE, null);
+		ticket.setOnlineCheck(reject, 1000);
+		insert(11, CardFactory.Kind.VALID);
+		ValidationResult result = ticket.use(now);
+		Check.equal(ValidationResult.Reason.REJECTED_ONLINE, result.getReason(),
+				"rejected card");
+		Check.equal(11, reject.uid, "UID looked up");
+		ticket.setOnlineCheck(null, 0);
+		Check.equal(result.getRemainingUses(), ticket.peek(now)
+				.getRemainingUses(), "rejected tap uses nothing");
+	}
+
+	void acceptsWithoutAnswer() throws Exception {
+		ticket.setOnlineCheck(new Answer(null, null), 1000);
+		insert(12, CardFactory.Kind.VALID);
+		Check.isTrue(ticket.use(now).isValid(), "no opinion");
+		ticket.setOnlineCheck(new Answer(null, new IllegalStateException(
+				"server down")), 1000);
+		insert(13, CardFactory.Kind.VALID);
+		Check.isTrue(ticket.use(now).isValid(), "failed lookup");
+	}
+
+	// The lookup starts after the first READ, before the rest of the card
+	// is read.
+	void startsAfterUid() throws Exception {
+		final long[] apdus = new long[1];
+		ticket.setOnlineCheck(new OnlineCheck() {
+			public Future<Boolean> lookup(long uid) {
+				apdus[0] = terminal.getApduCount();
+				return new Answer(Boolean.TRUE, null).lookup(uid);
+			}
+		}, 1000);
+		insert(16, CardFactory.Kind.VALID);
+		long before = terminal.getApduCount();
+		Check.isTrue(ticket.peek(now).isValid(), "valid card");
+		Check.isTrue(apdus[0] > before && apdus[0] < terminal.getApduCount(),
+				"looked up after " + (apdus[0] - before) + " of "
+						+ (terminal.getApduCount() - before) + " APDUs");
+	}
+
+	void keepsDeadline() throws Exception {
+		Silent silent = new Silent();
+		ticket.setOnlineCheck(silent, 50);
+		insert(14, CardFactory.Kind.VALID);
+		long start = System.nanoTime();
+		Check.isTrue(ticket.use(now).isValid(), "late answer is ignored");
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		Check.isTrue(elapsed >= 40, "waited for the answer, " + elapsed + " ms");
+		Check.isTrue(elapsed < 1000, "kept the deadline, " + elapsed + " ms");
+		Check.isTrue(silent.last.isCancelled(), "late lookup cancelled");
+
+		// An offline rejection does not wait for the server.
+		ticket.setOnlineCheck(silent, 5000);
+		insert(15, CardFactory.Kind.EXPIRED);
+		start = System.nanoTime();
+		Check.equal(ValidationResult.Reason.EXPIRED, ticket.use(now)
+				.getReason(), "expired card");
+		elapsed = (System.nanoTime() - start) / 1000000;
+		Check.isTrue(elapsed < 1000, "no wait after an offline rejection, "
+				+ elapsed + " ms");
+		Check.isTrue(silent.last.isCancelled(),
+				"lookup cancelled after an offline rejection");
+	}
+
+	public static void main(String[] args) throws Exception {
+		new OnlineCheckTest().rejectsCard();
+		new OnlineCheckTest().acceptsWithoutAnswer();
+		new OnlineCheckTest().startsAfterUid();
+		new OnlineCheckTest().keepsDeadline();
+	}
+
+}
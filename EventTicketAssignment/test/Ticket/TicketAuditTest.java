@@ -0,0 +1,111 @@
+package Ticket;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import Gate.CardFactory;
+import Testing.Check;
+
+/**
+ * TicketAudit must judge images like Ticket.use() does.
+ */
+public class TicketAuditTest {
+
+	private static final byte[] tag = { 0x54, 0x49, 0x4B, 0x54 };
+	private static final int now = 29000000;
+
+	static void usesFromOtp() {
+		Check.equal(0, Ticket.usesFromOtp(0), "no uses");
+		Check.equal(1, Ticket.usesFromOtp(1), "one use");
+		Check.equal(2, Ticket.usesFromOtp(3), "two uses");
+		Check.equal(31, Ticket.usesFromOtp(0x7FFFFFFF), "31 uses");
+		Check.equal(32, Ticket.usesFromOtp(-1), "all 32 uses");
+		Check.equal(0, Ticket.usesFromOtp(5), "gap in the bits");
+		Check.equal(0, Ticket.usesFromOtp(2), "first bit missing");
+	}
+
+	static void classifiesImages() throws Exception {
+		CardFactory factory = new CardFactory();
+		TicketAudit audit = new TicketAudit(tag, 1);
+		TicketAudit.Summary summary = new TicketAudit.Summary();
+		KeyRing keys = new KeyRing();
+		byte[] scratch = new byte[7 * 4];
+
+		audit.audit(factory.issue(1, CardFactory.Kind.VALID, now), now,
+				scratch, keys, summary);
+		audit.audit(factory.issue(2, CardFactory.Kind.EXPIRED, now), now,
+				scratch, keys, summary);
+		audit.audit(factory.issue(3, CardFactory.Kind.EXHAUSTED, now), now,
+				scratch, keys, summary);
+		byte[] forged = factory.issue(4, CardFactory.Kind.VALID, now);
+		forged[27]++; // More uses than issued.
+		audit.audit(forged, now, scratch, keys, summary);
+		byte[] badOtp = factory.issue(5, CardFactory.Kind.VALID, now);
+		badOtp[15] = 5;
+		audit.audit(badOtp, now, scratch, keys, summary);
+		audit.audit(new byte[64], now, scratch, keys, summary);
+
+		Check.equal(6, summary.images, "images");
+		Check.equal(1, summary.valid, "valid");
+		Check.equal(1, summary.expired, "expired");
+		Check.equal(1, summary.exhausted, "exhausted");
+		Check.equal(1, summary.notTickets, "not tickets");
+		Check.equal(1, summary.anomalies[TicketAudit.Anomaly.BAD_MAC.ordinal()],
+				"bad MAC");
+		Check.equal(1, summary.anomalies[TicketAudit.Anomaly.BAD_OTP.ordinal()],
+				"bad OTP");
+		Check.equal(4L, summary.anomalousUids.get(0).longValue(), "UID of the forged card");
+	}
+
+	// An image counts as issued by the same pages as in Ticket.validate(),
+	// also when only the second MAC slot (pages 9..10) is set.
+	static void findsIssuedTickets() throws Exception {
+		byte[] blank = new byte[64];
+		System.arraycopy(tag, 0, blank, 16, 4);
+		byte[] secondSlot = blank.clone();
+		secondSlot[40] = 1;
+		byte[] afterMac = blank.clone();
+		afterMac[44] = 1;
+		Check.isTrue(!Ticket.isIssued(blank, 0), "blank");
+		Check.isTrue(Ticket.isIssued(secondSlot, 0), "second MAC slot");
+		Check.isTrue(!Ticket.isIssued(afterMac, 0), "page 11 is not checked");
+		Check.isTrue(Ticket.isIssued(new CardFactory().issue(1,
+				CardFactory.Kind.VALID, now), 0), "issued card");
+
+		TicketAudit audit = new TicketAudit(tag, 1);
+		TicketAudit.Summary summary = new TicketAudit.Summary();
+		KeyRing keys = new KeyRing();
+		for (byte[] image : new byte[][] { blank, secondSlot, afterMac })
+			audit.audit(image, now, new byte[7 * 4], keys, summary);
+		Check.equal(2, summary.unissued, "unissued");
+		Check.equal(1, summary.anomalies[TicketAudit.Anomaly.BAD_MAC.ordinal()],
+				"second MAC slot checked");
+	}
+
+	static void auditsFileWithThreads() throws Exception {
+		CardFactory factory = new CardFactory();
+		File file = File.createTempFile("audit", ".img");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < 100; i++)
+				out.write(factory.issue(i, i % 10 == 0 ? CardFactory.Kind.EXPIRED
+						: CardFactory.Kind.VALID, now));
+			out.write(new byte[10]); // Partial image, ignored.
+		} finally {
+			out.close();
+		}
+		TicketAudit.Summary summary = new TicketAudit(tag, 3).audit(file, now);
+		Check.equal(100, summary.images, "images");
+		Check.equal(90, summary.valid, "valid");
+		Check.equal(10, summary.expired, "expired");
+		Check.equal(0, summary.anomalous, "anomalous");
+	}
+
+	public static void main(String[] args) throws Exception {
+		usesFromOtp();
+		findsIssuedTickets();
+		classifiesImages();
+		auditsFileWithThreads();
+	}
+
+}
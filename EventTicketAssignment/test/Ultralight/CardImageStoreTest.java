@@ -0,0 +1,111 @@
+package Ultralight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import Testing.Check;
+
+/**
+ * CardImageStore keeps card histories across reopening, with the persisted
+ * UID index, and allows one open store per directory.
+ */
+public class CardImageStoreTest {
+
+	private static File newDirectory() throws IOException {
+		File directory = File.createTempFile("store", "");
+		directory.delete();
+		directory.mkdirs();
+		return directory;
+	}
+
+	private static byte[] image(long uid, int marker) {
+		byte[] image = EmulatedTerminal.blankCard(uid);
+		image[63] = (byte) marker;
+		return image;
+	}
+
+	static void keepsHistoryAcrossReopen() throws IOException {
+		File directory = newDirectory();
+		CardImageStore store = new CardImageStore(directory, 16);
+		// More cards than the first index and records than one segment.
+		for (int i = 0; i < 1500; i++)
+			store.append(image(i % 700, i / 700), 1000 + i);
+		store.close();
+
+		store = new CardImageStore(directory, 16);
+		Check.equal(1500, store.size(), "records after reopen");
+		List<CardImageStore.Snapshot> history = store.getHistory(5, 10);
+		Check.equal(3, history.size(), "snapshots of card 5");
+		Check.equal(1000 + 1405, history.get(0).time, "newest first");
+		Check.equal(2, history.get(0).image[63], "newest image");
+		Check.equal(1000 + 5, history.get(2).time, "oldest last");
+		Check.isTrue(store.getLatest(12345) == null, "unknown card");
+		store.append(image(5, 9), 5000);
+		Check.equal(9, store.getLatest(5).image[63], "appended after reopen");
+		store.close();
+		Check.isTrue(new File(directory, "index-2048.idx").exists(),
+				"grown index is kept");
+		Check.isTrue(!new File(directory, "index-1024.idx").exists(),
+				"old index is deleted");
+	}
+
+	static void catchesUpStaleIndex() throws IOException {
+		File directory = newDirectory();
+		CardImageStore store = new CardImageStore(directory, 16);
+		for (int i = 0; i < 40; i++)
+			store.append(image(i % 4, i), 1000 + i);
+		store.close();
+		// As if the process died before the index covered the last records.
+		RandomAccessFile index = new RandomAccessFile(new File(directory,
+				"index-1024.idx"), "rw");
+		index.seek(8);
+		index.writeLong(30);
+		index.close();
+
+		store = new CardImageStore(directory, 16);
+		Check.equal(40, store.size(), "records");
+		Check.equal(39, store.getLatest(3).image[63], "newest of card 3");
+		Check.equal(10, store.getHistory(3, 100).size(), "history of card 3");
+		store.close();
+	}
+
+	static void rebuildsBrokenIndex() throws IOException {
+		File directory = newDirectory();
+		CardImageStore store = new CardImageStore(directory, 16);
+		for (int i = 0; i < 20; i++)
+			store.append(image(i % 2, i), 1000 + i);
+		store.close();
+		RandomAccessFile index = new RandomAccessFile(new File(directory,
+				"index-1024.idx"), "rw");
+		index.setLength(100);
+		index.close();
+
+		store = new CardImageStore(directory, 16);
+		Check.equal(20, store.size(), "records");
+		Check.equal(19, store.getLatest(1).image[63], "newest of card 1");
+		Check.equal(10, store.getHistory(0, 100).size(), "history of card 0");
+		store.close();
+	}
+
+	static void allowsOneOpenStore() throws IOException {
+		final File directory = newDirectory();
+		CardImageStore store = new CardImageStore(directory, 16);
+		try {
+			new CardImageStore(directory, 16);
+			throw new AssertionError("second open must fail");
+		} catch (IOException e) {
+			Check.isTrue(e.getMessage().contains("in use"), "in use message");
+		}
+		store.close();
+		new CardImageStore(directory, 16).close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		keepsHistoryAcrossReopen();
+		catchesUpStaleIndex();
+		rebuildsBrokenIndex();
+		allowsOneOpenStore();
+	}
+
+}
@@ -0,0 +1,194 @@
+package Ultralight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import Testing.Check;
+
+/**
+ * CardReader sessions hold the card for one operation, and an expired
+ * session gives up the card but fails until its owner ends it. Batches go
+ * in transparent exchanges, and only readers that do not support them get
+ * single APDUs.
+ */
+public class CardReaderTest {
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	private static EmulatedCardReader reader(EmulatedTerminal terminal)
+			throws Exception {
+		EmulatedCardReader reader = new EmulatedCardReader(terminal, null, null);
+		reader.initReader();
+		return reader;
+	}
+
+	static void parsesExchangeResponses() {
+		List<byte[]> responses = new ArrayList<byte[]>();
+		byte[] error = CardReader.parseExchange(bytes(0xC0, 0x03, 0x02, 0x64,
+				0x01, 0x97, 0x01, 0x0A, 0x97, 0x81, 0x01, 0x00, 0x90, 0x00),
+				responses);
+		Check.equal(bytes(0x02, 0x64, 0x01), error, "error status");
+		Check.equal(2, responses.size(), "responses");
+		Check.equal(bytes(0x0A), responses.get(0), "short length");
+		Check.equal(bytes(0x00), responses.get(1), "long length");
+
+		Check.isTrue(CardReader.parseExchange(bytes(0x97, 0x01, 0x0A, 0x90,
+				0x00), null) == null, "no error status");
+		Check.isTrue(CardReader.parseExchange(bytes(0xC0, 0x03, 0x00, 0x90,
+				0x00, 0x97, 0x10, 0x00, 0x90, 0x00), null) == null,
+				"truncated object");
+		Check.isTrue(CardReader.parseExchange(bytes(0xC0, 0x03, 0x00, 0x90,
+				0x00, 0x97), null) == null, "truncated header");
+		Check.isTrue(CardReader.parseExchange(bytes(0xC0, 0x03, 0x00, 0x90,
+				0x00, 0x69, 0x85), null) == null, "error status word");
+		Check.isTrue(CardReader.parseExchange(bytes(0x90), null) == null,
+				"short response");
+	}
+
+	static void sendsBatchesInExchanges() throws Exception {
+		RecordingTerminal terminal = new RecordingTerminal();
+		byte[] card = EmulatedTerminal.blankCard(7);
+		card[36] = 9;
+		terminal.insertCard(card);
+		EmulatedCardReader reader = reader(terminal);
+		reader.initCard();
+		terminal.apdus.clear();
+
+		byte[] data = bytes(1, 2, 3, 4);
+		byte[] buffer = new byte[4 + 16];
+		CommandBatch batch = new CommandBatch();
+		batch.write(4, data, 0);
+		batch.read(4, buffer, 0);
+		batch.readFour(8, 0x3, buffer, 4);
+		Check.isTrue(reader.sendBatch(batch), "batch");
+		Check.equal("C200 C201 C200", terminal.instructions(),
+				"session, exchange, end of session");
+		Check.equal(data, Arrays.copyOfRange(buffer, 0, 4), "page read back");
+		Check.equal(9, buffer[4 + 4], "page 9");
+		Check.equal(0, buffer[4 + 8], "page 10 is not wanted");
+
+		// A NAK fails the command and the ones after it.
+		batch.clear();
+		batch.read(5, buffer, 0);
+		batch.write(0, data, 0);
+		batch.read(6, buffer, 0);
+		Check.isTrue(!reader.sendBatch(batch), "batch with a NAK");
+		Check.isTrue(batch.getStatus(0), "read before the NAK");
+		Check.isTrue(!batch.getStatus(1), "write to page 0");
+		Check.isTrue(!batch.getStatus(2), "read after the NAK");
+		Check.equal("C200 C201 C200", terminal.instructions(),
+				"NAK in an exchange");
+
+		// In a session, the transparent session lasts until its end.
+		Check.isTrue(reader.beginSession(), "session");
+		try {
+			batch.clear();
+			batch.read(4, buffer, 0);
+			Check.isTrue(reader.sendBatch(batch), "first batch");
+			Check.isTrue(reader.sendBatch(batch), "second batch");
+		} finally {
+			reader.endSession();
+		}
+		Check.equal("C200 C201 C201 C200", terminal.instructions(),
+				"one transparent session");
+		Check.isTrue(reader.isTransparentExchange(), "exchange kept");
+	}
+
+	static void failsOnlyUnsupportedExchanges() throws Exception {
+		RecordingTerminal terminal = new RecordingTerminal();
+		terminal.insertCard(EmulatedTerminal.blankCard(7));
+		EmulatedCardReader reader = reader(terminal);
+		reader.initCard();
+		byte[] buffer = new byte[16];
+		CommandBatch batch = new CommandBatch();
+		batch.readFour(0, 0xF, buffer, 0);
+
+		// Errors other than "not supported" fail the commands this time.
+		byte[][] failures = { bytes(0x69, 0x85), bytes(0x64, 0x00),
+				bytes(0x97, 0x10, 0x00, 0x90, 0x00), bytes(0x90, 0x00) };
+		for (byte[] response : failures) {
+			terminal.exchangeResponse = response;
+			terminal.apdus.clear();
+			Check.isTrue(!reader.sendBatch(batch), "failed exchange");
+			Check.isTrue(!batch.getStatus(0), "failed command");
+			Check.isTrue(reader.isTransparentExchange(), "exchange kept");
+			Check.equal("C200 C201 C200", terminal.instructions(),
+					"no single APDUs");
+		}
+		terminal.exchangeResponse = null;
+		Check.isTrue(reader.sendBatch(batch), "exchange works again");
+
+		for (byte[] unsupported : new byte[][] { bytes(0x6A, 0x81),
+				bytes(0x6D, 0x00), bytes(0x6E, 0x00) }) {
+			reader.setTransparentExchange(true);
+			terminal.exchangeResponse = unsupported;
+			Arrays.fill(buffer, (byte) 0);
+			Check.isTrue(reader.sendBatch(batch), "single APDUs");
+			Check.isTrue(!reader.isTransparentExchange(), "exchange refused");
+			Check.equal(7, buffer[7], "UID byte");
+		}
+		terminal.apdus.clear();
+		batch.clear();
+		batch.readFour(8, 0x5, buffer, 0);
+		Check.isTrue(reader.sendBatch(batch), "single APDUs");
+		Check.equal("B008 B00A", terminal.instructions(),
+				"only the wanted pages");
+
+		// A reader without transparent exchange refuses the session.
+		terminal.setTransparentExchange(false);
+		reader.setTransparentExchange(true);
+		terminal.exchangeResponse = null;
+		batch.clear();
+		batch.read(4, buffer, 0);
+		Check.isTrue(reader.sendBatch(batch), "single APDU");
+		Check.equal("C200 B004", terminal.instructions(), "session refused");
+		Check.isTrue(!reader.isTransparentExchange(), "exchange refused");
+	}
+
+	static void expiresSessions() throws Exception {
+		EmulatedTerminal terminal = new EmulatedTerminal("Session test");
+		terminal.insertCard(EmulatedTerminal.blankCard(7));
+		EmulatedCardReader reader = reader(terminal);
+		reader.setMaxSessionTime(20);
+		UltralightCommands ul = new UltralightCommands(reader);
+		byte[] page = new byte[4];
+
+		Check.isTrue(reader.beginSession(), "session");
+		try {
+			Thread.sleep(1000);
+			throw new AssertionError("the watchdog did not interrupt");
+		} catch (InterruptedException e) {
+			// Expected.
+		}
+		Check.isTrue(!ul.readBinary(4, page, 0), "APDU after expiry");
+		// The card is free for others while the owner still fails.
+		EmulatedCardReader other = reader(terminal);
+		Check.isTrue(other.beginSession(), "session of another reader");
+		other.endSession();
+		Check.isTrue(!ul.readBinary(4, page, 0), "second APDU after expiry");
+		reader.endSession();
+		Check.equal(1, reader.getExpiredSessions(), "expired sessions");
+
+		Check.isTrue(!Thread.currentThread().isInterrupted(), "interrupt cleared");
+		Check.isTrue(reader.beginSession(), "next session");
+		try {
+			Check.isTrue(ul.readBinary(4, page, 0), "APDU in the next session");
+		} finally {
+			reader.endSession();
+		}
+		Check.isTrue(ul.readBinary(5, page, 0), "APDU outside a session");
+	}
+
+	public static void main(String[] args) throws Exception {
+		expiresSessions();
+		parsesExchangeResponses();
+		sendsBatchesInExchanges();
+		failsOnlyUnsupportedExchanges();
+	}
+
+}
@@ -0,0 +1,123 @@
+package Ultralight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+import Testing.Check;
+
+/**
+ * MemoryDumpFormatter prints the same table as the original printMemory()
+ * for every byte value, and one line per image in the JSON and CSV
+ * formats.
+ */
+public class MemoryDumpFormatterTest {
+
+	private static final String nl = System.getProperty("line.separator");
+
+	// The table as the original UltralightUtilities.printMemory() printed it.
+	private static String printMemory(byte[] memory) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		out.println("\n\nCard memory dump:");
+		out.println("Page Hexadecimal    ASCII   Binary");
+		out.println("---------------------------------------------------------------");
+		for (int i = 0; i < 16; i++) {
+			out.printf("%02d   ", i);
+			for (int j = 0; j < 4; j++)
+				out.printf("%02X ", memory[4 * i + j]);
+			out.print("   ");
+			for (int j = 0; j < 4; j++) {
+				char c = (char) memory[4 * i + j];
+				if (Character.isISOControl(c) || c >= 128)
+					out.print(".");
+				else
+					out.printf("%c", c);
+			}
+			out.print("    ");
+			for (int j = 0; j < 4; j++) {
+				for (int k = 0; k < 8; k++)
+					out.print((((memory[4 * i + j] >> (7 - k)) % 2) == 0 ? 0 : 1));
+				out.print(" ");
+			}
+			out.println();
+		}
+		out.println("---------------------------------------------------------------");
+		out.println();
+		out.flush();
+		return bytes.toString();
+	}
+
+	private static String format(MemoryDumpFormatter formatter, byte[] memory,
+			MemoryDumpFormatter.Format format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		formatter.write(out, memory, format);
+		return out.toString();
+	}
+
+	static void tableMatchesPrintMemory() throws IOException {
+		MemoryDumpFormatter formatter = new MemoryDumpFormatter();
+		// Every byte value in four images, then random images.
+		byte[] memory = new byte[64];
+		for (int image = 0; image < 4; image++) {
+			for (int i = 0; i < 64; i++)
+				memory[i] = (byte) (64 * image + i);
+			Check.equal(printMemory(memory), format(formatter, memory,
+					MemoryDumpFormatter.Format.TABLE), "table of bytes from "
+					+ 64 * image);
+		}
+		Random random = new Random(29);
+		for (int image = 0; image < 100; image++) {
+			random.nextBytes(memory);
+			Check.equal(printMemory(memory), format(formatter, memory,
+					MemoryDumpFormatter.Format.TABLE), "table of random image");
+		}
+	}
+
+	static void writesJsonAndCsvLines() throws IOException {
+		MemoryDumpFormatter formatter = new MemoryDumpFormatter();
+		byte[] memory = new byte[64];
+		for (int i = 0; i < 64; i++)
+			memory[i] = (byte) (0xF0 + i);
+		StringBuilder pages = new StringBuilder();
+		StringBuilder csv = new StringBuilder("F0F1F2F4F5F6F7");
+		for (int i = 0; i < 16; i++) {
+			String page = String.format("%02X%02X%02X%02X", memory[4 * i],
+					memory[4 * i + 1], memory[4 * i + 2], memory[4 * i + 3]);
+			pages.append(i > 0 ? "," : "").append('"').append(page).append('"');
+			csv.append(',').append(page);
+		}
+		Check.equal("{\"uid\":\"F0F1F2F4F5F6F7\",\"pages\":[" + pages + "]}" + nl,
+				format(formatter, memory, MemoryDumpFormatter.Format.JSON), "JSON");
+		Check.equal(csv + nl, format(formatter, memory,
+				MemoryDumpFormatter.Format.CSV), "CSV");
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		formatter.writeCsvHeader(header);
+		String[] columns = header.toString().trim().split(",");
+		Check.equal(17, columns.length, "CSV columns");
+		Check.equal("uid", columns[0], "first CSV column");
+		Check.equal("page15", columns[16], "last CSV column");
+	}
+
+	static void rejectsShortImage() {
+		final MemoryDumpFormatter formatter = new MemoryDumpFormatter();
+		Check.fails(IllegalArgumentException.class, new Runnable() {
+			public void run() {
+				try {
+					formatter.write(new ByteArrayOutputStream(), new byte[16],
+							MemoryDumpFormatter.Format.TABLE);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "16-byte image");
+	}
+
+	public static void main(String[] args) throws Exception {
+		tableMatchesPrintMemory();
+		writesJsonAndCsvLines();
+		rejectsShortImage();
+	}
+
+}
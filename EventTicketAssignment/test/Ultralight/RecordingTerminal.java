@@ -0,0 +1,54 @@
+package Ultralight;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.smartcardio.CardException;
+
+/**
+ * EmulatedTerminal that keeps the APDUs for the tests, and can answer
+ * transparent exchanges with a given response instead of the card's.
+ */
+class RecordingTerminal extends EmulatedTerminal {
+
+	final List<byte[]> apdus = new ArrayList<byte[]>();
+	byte[] exchangeResponse = null;
+
+	RecordingTerminal() {
+		super("Recording");
+	}
+
+	@Override
+	protected byte[] execute(byte[] cmd) throws CardException {
+		apdus.add(cmd);
+		if (exchangeResponse != null && cmd[1] == (byte) 0xC2
+				&& cmd[3] == 0x01)
+			return exchangeResponse;
+		return super.execute(cmd);
+	}
+
+	// Instruction byte and P2 of each APDU since the last call, e.g. C201
+	// for an exchange.
+	String instructions() {
+		StringBuilder s = new StringBuilder();
+		for (byte[] apdu : apdus)
+			s.append(String.format("%02X%02X ", apdu[1], apdu[3]));
+		apdus.clear();
+		return s.toString().trim();
+	}
+
+	// Pages that READ commands since the last call started from, in
+	// exchanges and in single APDUs.
+	String reads() {
+		StringBuilder s = new StringBuilder();
+		for (byte[] apdu : apdus) {
+			if (apdu[1] == (byte) 0xB0)
+				s.append(apdu[3]).append(' ');
+			if (apdu[1] != (byte) 0xC2 || apdu[3] != 0x01) continue;
+			for (int pos = 5; pos + 1 < apdu.length - 1; pos += 2 + apdu[pos + 1])
+				if (apdu[pos + 2] == 0x30) s.append(apdu[pos + 3]).append(' ');
+		}
+		apdus.clear();
+		return s.toString().trim();
+	}
+
+}
@@ -0,0 +1,173 @@
+package Ultralight;
+
+import java.util.Arrays;
+import Testing.Check;
+
+/**
+ * UltralightCommands reads pages with as few four-page READs as it can,
+ * in and out of safe mode. In safe mode it emulates the OTP page with page
+ * 15, sets lock bits in memory only, and honours the lock bit of the OTP
+ * page, from a shadow copy of pages 2 and 15 that belongs to one card.
+ */
+public class UltralightCommandsTest {
+
+	private final RecordingTerminal terminal = new RecordingTerminal();
+	private final EmulatedCardReader reader = new EmulatedCardReader(
+			terminal, null, null);
+	private final UltralightCommands ul = new UltralightCommands(reader);
+	private final byte[] card = EmulatedTerminal.blankCard(7);
+
+	private UltralightCommandsTest() throws Exception {
+		for (int i = 12; i < 64; i++)
+			card[i] = (byte) i;
+		terminal.insertCard(card);
+		reader.initReader();
+		reader.initCard();
+		terminal.apdus.clear();
+	}
+
+	void readsFourPagesPerRead() throws Exception {
+		ul.safe = false;
+		byte[] memory = new byte[16 * 4];
+		Check.isTrue(ul.readPages(0, 9, memory, 0), "pages 0..8");
+		Check.equal("0 4 8", terminal.reads(), "READs for pages 0..8");
+		Check.isTrue(ul.readPages(0, 11, memory, 0), "pages 0..10");
+		Check.equal("0 4 8", terminal.reads(), "READs for pages 0..10");
+		Check.equal(Arrays.copyOf(card, 44), Arrays.copyOf(memory, 44),
+				"pages");
+		Check.equal(0, memory[44], "page 11 is not copied");
+
+		Check.isTrue(ul.readPages(5, 2, memory, 0), "pages 5..6");
+		Check.equal("5", terminal.reads(), "READ for pages 5..6");
+		Check.equal(Arrays.copyOfRange(card, 20, 28), Arrays.copyOf(memory, 8),
+				"pages 5..6");
+
+		// Single APDUs read only the pages asked for.
+		reader.setTransparentExchange(false);
+		Check.isTrue(ul.readPages(8, 3, memory, 0), "single APDUs");
+		Check.equal("8 9 10", terminal.reads(), "single reads");
+	}
+
+	void readsAroundInSafeMode() throws Exception {
+		byte[] memory = new byte[11 * 4];
+		Check.isTrue(ul.readPages(0, 11, memory, 0), "pages 0..10");
+		Check.equal("4 8 15", terminal.reads(), "READs in safe mode");
+		Check.equal(Arrays.copyOfRange(card, 60, 64), Arrays.copyOfRange(
+				memory, 12, 16), "page 15 for page 3");
+		Check.equal(Arrays.copyOf(card, 12), Arrays.copyOf(memory, 12),
+				"pages 0..2");
+	}
+
+	// A card whose page 15 is filled with the marker and whose OTP page is
+	// locked or not.
+	private static byte[] card(long uid, int marker, boolean otpLocked) {
+		byte[] card = EmulatedTerminal.blankCard(uid);
+		Arrays.fill(card, 60, 64, (byte) marker);
+		if (otpLocked) card[10] = 1 << 3;
+		return card;
+	}
+
+	void emulatesOtpLock() throws Exception {
+		byte[] page = new byte[4];
+		byte[] readBack = new byte[4];
+		byte[] bit = { 0, 0, 0, 0x40 };
+
+		byte[] unlocked = card(8, 0x01, false);
+		terminal.insertCard(unlocked);
+		reader.initCard();
+		Check.isTrue(ul.writeBinary(3, bit, 0), "OTP write");
+		Check.equal(0x41, unlocked[63], "bit set in page 15");
+		Check.equal(0, unlocked[15], "real OTP page untouched");
+		terminal.apdus.clear();
+		Check.isTrue(ul.writeBinary(3, new byte[] { 0, 0, 0, 0x02 }, 0),
+				"second OTP write");
+		Check.equal("D60F", terminal.instructions(), "one APDU from the shadow");
+		Check.equal(0x43, unlocked[63], "bits ORed");
+		Check.isTrue(ul.writeAndReadBack(3, new byte[] { 0, 0, 0, 0x04 }, 0,
+				readBack, 0), "OTP write and read-back");
+		Check.equal(0x47, readBack[3], "page 15 read back");
+
+		byte[] locked = card(9, 0x01, true);
+		terminal.insertCard(locked);
+		reader.initCard();
+		Check.isTrue(!ul.writeBinary(3, bit, 0), "locked OTP write");
+		Check.isTrue(!ul.writeAndReadBack(3, bit, 0, readBack, 0),
+				"locked OTP write and read-back");
+		Check.equal(0x01, locked[63], "page 15 unchanged");
+		Check.isTrue(ul.readBinary(3, page, 0), "locked OTP read");
+		Check.equal(new byte[] { 1, 1, 1, 1 }, page, "emulated OTP page");
+	}
+
+	// Safe mode sets the lock bits in the shadow only, and the OTP page is
+	// locked from then on.
+	void emulatesLockWrites() throws Exception {
+		byte[] page = new byte[4];
+		byte[] readBack = new byte[4];
+		byte[] bit = { 0, 0, 0, 0x40 };
+		byte[] unlocked = card(13, 0x01, false);
+		terminal.insertCard(unlocked);
+		reader.initCard();
+		Check.isTrue(ul.writeBinary(2, new byte[] { 0, 0, 1 << 3, 0 }, 0),
+				"lock write");
+		Check.equal(0, unlocked[10], "card lock bits untouched");
+		Check.isTrue(!ul.writeBinary(3, bit, 0), "OTP write after the lock");
+		Check.isTrue(!ul.writeAndReadBack(3, bit, 0, readBack, 0),
+				"OTP write and read-back after the lock");
+		Check.equal(0x01, unlocked[63], "page 15 unchanged");
+
+		// The lock bits are ORed into page 2 as read, also from the card.
+		ul.invalidateCache();
+		Check.isTrue(ul.readBinary(2, page, 0), "page 2");
+		Check.equal(1 << 3, page[2], "emulated lock bit");
+		Check.isTrue(!ul.writeBinary(3, bit, 0), "OTP write after a reread");
+		Check.isTrue(ul.writeAndReadBack(2, new byte[] { 0, 0, 0, 1 }, 0,
+				readBack, 0), "lock write and read-back");
+		Check.equal(new byte[] { 1 << 3, 1 }, Arrays.copyOfRange(
+				readBack, 2, 4), "lock bytes read back");
+		Check.equal(0, unlocked[11], "card lock bits still untouched");
+
+		// The next card is not locked.
+		terminal.insertCard(card(14, 0x01, false));
+		reader.initCard();
+		Check.isTrue(ul.writeBinary(3, bit, 0), "OTP write on the next card");
+	}
+
+	void dropsShadowOfOldCard() throws Exception {
+		byte[] page = new byte[4];
+		byte[] bit = { 0, 0, 0, 0x40 };
+		terminal.insertCard(card(10, 0x01, false));
+		reader.initCard();
+		Check.isTrue(ul.writeBinary(3, bit, 0), "OTP write on the first card");
+
+		// Another card: its own page 15 and lock bits count.
+		byte[] second = card(11, 0x02, true);
+		terminal.insertCard(second);
+		reader.initCard();
+		Check.isTrue(ul.readBinary(3, page, 0), "second card");
+		Check.equal(new byte[] { 2, 2, 2, 2 }, page, "page 15 of the second card");
+		Check.isTrue(!ul.writeBinary(3, bit, 0), "lock of the second card");
+
+		// A session reconnects to a new card without initCard().
+		byte[] third = card(12, 0x03, false);
+		terminal.insertCard(third);
+		Check.isTrue(reader.beginSession(), "session on the third card");
+		try {
+			Check.isTrue(ul.readBinary(3, page, 0), "third card");
+			Check.equal(new byte[] { 3, 3, 3, 3 }, page, "page 15 of the third card");
+			Check.isTrue(ul.writeBinary(3, bit, 0), "OTP write on the third card");
+			Check.equal(0x43, third[63], "bit set on the third card");
+		} finally {
+			reader.endSession();
+		}
+		Check.equal(0x02, second[63], "second card unchanged");
+	}
+
+	public static void main(String[] args) throws Exception {
+		new UltralightCommandsTest().readsFourPagesPerRead();
+		new UltralightCommandsTest().readsAroundInSafeMode();
+		new UltralightCommandsTest().emulatesOtpLock();
+		new UltralightCommandsTest().emulatesLockWrites();
+		new UltralightCommandsTest().dropsShadowOfOldCard();
+	}
+
+}